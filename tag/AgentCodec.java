@@ -0,0 +1,166 @@
+// AgentCodec.java
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * AgentCodec frames the state of a migrating agent for its
+ * writeExternal and readExternal methods. The agent writes its fields
+ * to a DataOutput; the codec prefixes the result with a format version
+ * and, if enabled and the state is large enough, compresses it.
+ *
+ * The frame is:
+ *
+ *   byte   format version
+ *   byte   flags (bit 0: compressed)
+ *   int    length of the state
+ *   int    length of the payload that follows (compressed or not)
+ *   byte[] payload
+ *
+ * Compression is off by default. It is enabled for states of at least
+ * n bytes with the system property tag.wire.compress=n.
+ */
+public final class AgentCodec {
+
+  // The version of the frame written by this class
+  public static final int FORMAT_VERSION = 1;
+
+  private static final int FLAG_COMPRESSED = 1;
+
+  // Compress states of at least this many bytes; negative disables
+  private static final int compressAbove =
+      Integer.getInteger("tag.wire.compress", -1);
+
+  /**
+   * The sizes in bytes of the frames read in this JVM, that is, of the
+   * agent states received by the Bailiffs in it.
+   */
+  public static final Histogram receivedBytes = new Histogram();
+
+  private AgentCodec() {
+  }
+
+  /**
+   * The agent side of the codec.
+   */
+  public interface State {
+    /**
+     * Writes the state of the agent.
+     */
+    void writeState(DataOutput out) throws IOException;
+
+    /**
+     * Reads the state of the agent.
+     *
+     * @param version The format version the state was written with.
+     */
+    void readState(DataInput in, int version) throws IOException;
+  }
+
+  /**
+   * Writes the state of the agent as one frame.
+   */
+  public static void write(ObjectOutput out, State agent) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+    DataOutputStream dos = new DataOutputStream(buf);
+    agent.writeState(dos);
+    dos.flush();
+    byte[] state = buf.toByteArray();
+
+    int flags = 0;
+    byte[] payload = state;
+    int length = state.length;
+
+    if (0 <= compressAbove && compressAbove <= state.length) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(state);
+        deflater.finish();
+        byte[] packed = new byte[state.length];
+        int n = deflater.deflate(packed);
+        if (deflater.finished() && n < state.length) {
+          flags |= FLAG_COMPRESSED;
+          payload = packed;
+          length = n;
+        }
+      } finally {
+        deflater.end();
+      }
+    }
+
+    out.writeByte(FORMAT_VERSION);
+    out.writeByte(flags);
+    out.writeInt(state.length);
+    out.writeInt(length);
+    out.write(payload, 0, length);
+  }
+
+  /**
+   * Reads one frame and hands the state to the agent.
+   *
+   * @throws InvalidObjectException Thrown if the frame was written by a
+   *                                newer version of the codec, or is
+   *                                corrupt.
+   */
+  public static void read(ObjectInput in, State agent) throws IOException {
+    int version = in.readUnsignedByte();
+    int flags = in.readUnsignedByte();
+    int stateLength = in.readInt();
+    int length = in.readInt();
+
+    if (FORMAT_VERSION < version)
+      throw new InvalidObjectException("Unknown agent format version " + version);
+    if (stateLength < 0 || length < 0)
+      throw new InvalidObjectException("Corrupt agent frame");
+
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    receivedBytes.record(10 + length);
+
+    byte[] state = payload;
+
+    if ((flags & FLAG_COMPRESSED) != 0) {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(payload);
+        state = new byte[stateLength];
+        if (inflater.inflate(state) != stateLength)
+          throw new InvalidObjectException("Corrupt compressed agent state");
+      } catch (DataFormatException e) {
+        throw new InvalidObjectException("Corrupt compressed agent state: "
+            + e.getMessage());
+      } finally {
+        inflater.end();
+      }
+    }
+
+    agent.readState(new DataInputStream(new ByteArrayInputStream(state)), version);
+  }
+
+  /**
+   * Writes a string that may be null.
+   */
+  public static void writeNullableUTF(DataOutput out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null)
+      out.writeUTF(s);
+  }
+
+  /**
+   * Reads a string written by writeNullableUTF.
+   */
+  public static String readNullableUTF(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
@@ -0,0 +1,310 @@
+// AgentEngine.java
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An AgentEngine lends threads of execution to the agents that a
+ * Bailiff has accepted. The Bailiff hands each agent to its engine as
+ * a Runnable and the engine decides how that Runnable is scheduled.
+ *
+ * Three engines are provided:
+ *
+ * legacy   A new platform thread is created for every agent. This is
+ *          how the Bailiff always worked.
+ *
+ * pool     Agents run on a bounded pool of platform threads. Agents
+ *          that arrive while all threads are busy wait in a bounded
+ *          queue, and a Bailiff refuses agents while the queue is full.
+ *          An agent whose entry method blocks or sleeps holds its
+ *          thread all the while, so a pool serves at most as many such
+ *          agents as it has threads. The pool suits short entry methods
+ *          and SteppedAgents, which hold a thread only while they step;
+ *          it does not make room for thousands of blocking agents.
+ *
+ * virtual  Every agent gets its own virtual thread. This requires a
+ *          Java runtime with virtual threads (Java 21 or later).
+ *
+ * All engines count the agents that are currently executing and the
+ * agents that are waiting for a thread.
+ */
+public abstract class AgentEngine {
+
+  // The number of agents currently executing their entry method.
+  protected final AtomicInteger activeAgents = new AtomicInteger();
+
+  // The number of agents handed to this engine that have not ended.
+  protected final AtomicInteger residentAgents = new AtomicInteger();
+
+  /**
+   * Returns the name of this engine, as given on the commandline.
+   */
+  public abstract String getName();
+
+  /**
+   * Schedules the agent for execution.
+   *
+   * @param agent The agent to run.
+   * @throws RejectedExecutionException Thrown if the engine has been
+   *                                    shut down.
+   */
+  public void execute(Runnable agent) {
+    residentAgents.incrementAndGet();
+    try {
+      dispatch(new Tracked(agent));
+    } catch (RuntimeException | Error e) {
+      residentAgents.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Hands the wrapped agent to the underlying thread or executor.
+   */
+  protected abstract void dispatch(Runnable agent);
+
+  /**
+   * Returns the number of agents waiting for a thread of execution.
+   */
+  public int getQueueDepth() {
+    return Math.max(0, residentAgents.get() - activeAgents.get());
+  }
+
+  /**
+   * Returns the number of agents that may wait for a thread of
+   * execution. An engine that starts every agent at once has no limit.
+   */
+  public int getQueueCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Returns the number of agents currently executing.
+   */
+  public int getActiveAgents() {
+    return activeAgents.get();
+  }
+
+  /**
+   * Stops accepting new agents. Agents already running are not
+   * interrupted.
+   */
+  public abstract void shutdown();
+
+  public String toString() {
+    return String.format("%s engine (active=%d queued=%d)",
+        getName(), getActiveAgents(), getQueueDepth());
+  }
+
+  /**
+   * Wraps an agent so that the active and resident counters follow
+   * its life cycle.
+   */
+  private class Tracked implements Runnable {
+    private final Runnable agent;
+
+    Tracked(Runnable agent) {
+      this.agent = agent;
+    }
+
+    public void run() {
+      activeAgents.incrementAndGet();
+      try {
+        agent.run();
+      } finally {
+        activeAgents.decrementAndGet();
+        residentAgents.decrementAndGet();
+      }
+    }
+  }
+
+  /* ================ F a c t o r y ================ */
+
+  /**
+   * Creates an engine from its commandline name. The queue of the pool
+   * engine holds the number of agents given by the system property
+   * tag.engine.queue, by default 16 per thread.
+   *
+   * @param name    One of legacy, pool or virtual.
+   * @param threads The number of platform threads of the pool engine.
+   *                Ignored by the other engines.
+   * @throws IllegalArgumentException      Thrown if the name is unknown
+   *                                       or the thread count is not
+   *                                       positive.
+   * @throws UnsupportedOperationException Thrown if virtual threads are
+   *                                       requested but not available
+   *                                       in this Java runtime.
+   */
+  public static AgentEngine create(String name, int threads) {
+    return create(name, threads,
+        Integer.getInteger("tag.engine.queue", 16 * Math.max(1, threads)));
+  }
+
+  /**
+   * Creates an engine from its commandline name.
+   *
+   * @param name    One of legacy, pool or virtual.
+   * @param threads The number of platform threads of the pool engine.
+   *                Ignored by the other engines.
+   * @param queue   The number of agents that may wait for a thread of
+   *                the pool engine. Ignored by the other engines.
+   * @throws IllegalArgumentException      Thrown if the name is unknown
+   *                                       or the thread count or queue
+   *                                       capacity is not positive.
+   * @throws UnsupportedOperationException Thrown if virtual threads are
+   *                                       requested but not available
+   *                                       in this Java runtime.
+   */
+  public static AgentEngine create(String name, int threads, int queue) {
+    switch (name.toLowerCase()) {
+      case "legacy":
+        return new Legacy();
+      case "pool":
+        return new Pooled(threads, queue);
+      case "virtual":
+        return new Virtual();
+      default:
+        throw new IllegalArgumentException("Unknown agent engine: " + name);
+    }
+  }
+
+  /**
+   * Returns a thread factory making daemon threads with the given
+   * name prefix.
+   */
+  static ThreadFactory daemonThreads(final String prefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /* ================ L e g a c y ================ */
+
+  /**
+   * One new platform thread per agent.
+   */
+  static class Legacy extends AgentEngine {
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    public String getName() {
+      return "legacy";
+    }
+
+    protected void dispatch(Runnable agent) {
+      if (shutdown)
+        throw new RejectedExecutionException("Engine is shut down");
+      new Thread(agent, "agent-" + count.incrementAndGet()).start();
+    }
+
+    public void shutdown() {
+      shutdown = true;
+    }
+  }
+
+  /* ================ P o o l e d ================ */
+
+  /**
+   * A fixed number of platform threads serving a bounded queue of
+   * waiting agents. Bailiffs check the capacity before they accept an
+   * agent; an agent dispatched to a full queue nonetheless, because
+   * several Bailiffs share the engine, waits for room rather than
+   * being dropped.
+   */
+  static class Pooled extends AgentEngine {
+    private final ThreadPoolExecutor pool;
+    private final int capacity;
+
+    Pooled(int threads, int capacity) {
+      if (threads < 1)
+        throw new IllegalArgumentException("Pool size must be positive: "
+            + threads);
+      if (capacity < 1)
+        throw new IllegalArgumentException("Queue capacity must be positive: "
+            + capacity);
+      this.capacity = capacity;
+      pool = new ThreadPoolExecutor(threads, threads,
+          60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(capacity),
+          daemonThreads("agent-pool"),
+          (agent, executor) -> {
+            if (executor.isShutdown())
+              throw new RejectedExecutionException("Engine is shut down");
+            try {
+              executor.getQueue().put(agent);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new RejectedExecutionException("Interrupted while queued");
+            }
+          });
+    }
+
+    public String getName() {
+      return "pool";
+    }
+
+    protected void dispatch(Runnable agent) {
+      pool.execute(agent);
+    }
+
+    public int getQueueDepth() {
+      return pool.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+      return capacity;
+    }
+
+    public void shutdown() {
+      pool.shutdown();
+    }
+  }
+
+  /* ================ V i r t u a l ================ */
+
+  /**
+   * One virtual thread per agent. The executor is looked up
+   * reflectively so that the Bailiff still compiles and runs on
+   * runtimes older than Java 21.
+   */
+  static class Virtual extends AgentEngine {
+    private final ExecutorService executor;
+
+    Virtual() {
+      try {
+        Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        executor = (ExecutorService) m.invoke(null);
+      } catch (NoSuchMethodException e) {
+        throw new UnsupportedOperationException(
+            "Virtual threads require Java 21 or later");
+      } catch (ReflectiveOperationException e) {
+        throw new UnsupportedOperationException(
+            "Virtual threads are not available: " + e.toString());
+      }
+    }
+
+    public String getName() {
+      return "virtual";
+    }
+
+    protected void dispatch(Runnable agent) {
+      executor.execute(agent);
+    }
+
+    public void shutdown() {
+      executor.shutdown();
+    }
+  }
+}
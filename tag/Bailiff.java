@@ -3,14 +3,23 @@
 // 2018-08-16/fki Refactored for v13
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
 import java.net.InetAddress;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,8 +55,9 @@ public class Bailiff
   // forensic analysis.
   protected Logger log;
 
-  // A boolean to check if the Bailiff contains a player that is it
-  protected boolean containsIt = false;
+  // A boolean to check if the Bailiff contains a player that is it,
+  // renewed with every heartbeat
+  protected volatile boolean containsIt = false;
 
   // The id string identifies this Bailiff instance in messages.
   protected String id = "";
@@ -58,7 +68,14 @@ public class Bailiff
 
   // The property map can optionally be used to get and set runtime
   // configuration properties of the Bailiff, for example, the maximum
-  // nof clients.
+  // nof clients. The following properties are read on every migration:
+  //   maxagents   The maximum number of resident agents, 0 is no limit
+  //   admitqueue  The maximum number of agents waiting to be started
+  //   retryafter  The delay suggested to refused agents, milliseconds
+  //   passivateafter The shortest sleep, in milliseconds, for which an
+  //               agent is passivated, if passivation is started
+  // and on every roster page:
+  //   maxpage     The largest number of players in a roster page
   protected Map<String, String> propertyMap;
 
   // Set to the name of the host the JVM is executing on.
@@ -70,8 +87,56 @@ public class Bailiff
   // Registration name with the rmiregistry
   protected String serviceName = null;
 
-  // Map all players to their respective uuids
-  protected Map<UUID, PlayerInterface> playerMap = new HashMap<>();
+  // The players currently resident in this Bailiff, by uuid
+  protected PlayerRegistry players = new PlayerRegistry();
+
+  // The engine that lends threads of execution to the agents.
+  protected AgentEngine engine;
+
+  // Resolved entry points of agent classes seen by this Bailiff.
+  protected EntryPointCache entryPoints = new EntryPointCache();
+
+  // Delivers roster changes to subscribed listeners.
+  protected EventDispatcher events;
+
+  // Counters and latency histograms of this Bailiff.
+  protected BailiffMetrics metrics;
+
+  // Accepted agents waiting to be registered and started, and the
+  // thread that starts them.
+  protected BlockingQueue<Agitator> admissions = new LinkedBlockingQueue<>();
+  protected Thread admitter;
+
+  // The number of agents with a reserved place in the admission queue
+  // that the admission thread has not yet taken. Reserved with CAS, so
+  // the admitqueue bound holds for concurrent migrations.
+  protected AtomicInteger queued = new AtomicInteger();
+
+  // The number of accepted agents that have not yet ended.
+  protected AtomicInteger residents = new AtomicInteger();
+
+  // Records typed events without formatting them, and the name index
+  // of this Bailiff in it.
+  protected EventRing trace = EventRing.shared();
+  protected int traceId = -1;
+
+  // The NIO transport of this Bailiff, if started.
+  protected NioBailiffServer nio;
+
+  // The spill file of passivated agents, if started, and the agents
+  // in it by wakeup time.
+  protected volatile SpillStore spill;
+  protected DelayQueue<Sleeper> sleepers = new DelayQueue<>();
+  protected Thread waker;
+
+  // Runs the steps of SteppedAgents, if started.
+  protected volatile StepScheduler stepper;
+
+  // This Bailiff's view of the mesh, kept up to date by gossip
+  protected BailiffGossip gossip;
+
+  // The Agitator running on the current thread, if any
+  private static final ThreadLocal<Agitator> running = new ThreadLocal<>();
 
   /**
    * If debug is enabled, prints a message on stdout.
@@ -88,15 +153,19 @@ public class Bailiff
 
   /**
    * Class Agitator wraps and encapsulates the remote object to which the
-   * Bailiff lends a thread of execution.
+   * Bailiff lends a thread of execution. The thread itself is provided
+   * by the Bailiff's AgentEngine.
    */
-  private class Agitator extends Thread {
+  protected class Agitator implements Runnable {
 
     protected Object myObj; // The client object
     protected String myCb; // The name of the entry point method
     protected Object[] myArgs; // Arguments to the entry point method
-    protected java.lang.reflect.Method myMethod; // Ref. to entry point method
-    protected Class[] myParms; // Class reflection of arguments
+    protected MethodHandle myHandle; // Ref. to entry point method
+    protected ClassLoader myLoader; // The client object's classloader
+    protected PlayerRegistry.Entry myEntry; // Registry entry, if a player
+    protected boolean passivated; // True if the agent is in the spill file
+    protected Agitator handoff; // Admitted elsewhere when this one ends
 
     /**
      * Creates a new Agitator by copying th references to the client
@@ -111,48 +180,256 @@ public class Bailiff
       myObj = obj;
       myCb = cb;
       myArgs = args;
-
-      // If the array of arguments are non-zero we must create an array
-      // of Class so that we can match the entry point method's name with
-      // the parameter signature. So, the myParms[] array is loaded with
-      // the class of each entry point parameter.
-
-      if (0 < args.length) {
-        myParms = new Class[args.length];
-        for (int i = 0; i < args.length; i++) {
-          myParms[i] = args[i].getClass();
-        }
-      } else {
-        myParms = null;
-      }
     }
 
     /**
      * This method locates the method that is the client object's requested
-     * entry point. It also sets the classloader of the current instance
-     * to follow the client's classloader.
+     * entry point. The lookup goes through the Bailiff's entry point cache,
+     * so that repeated migrations of the same class skip reflection. It
+     * also records the client's classloader, which becomes the context
+     * classloader of the thread that runs the agent.
      * 
      * @throws NoSuchMethodException Thrown if the entry point specified
      *                               in the constructor can not be found.
      */
     public void initialize() throws java.lang.NoSuchMethodException {
-      myMethod = myObj.getClass().getMethod(myCb, myParms);
-      setContextClassLoader(myObj.getClass().getClassLoader());
+      myHandle = entryPoints.resolve(myObj.getClass(), myCb, myArgs);
+      myLoader = myObj.getClass().getClassLoader();
+    }
+
+    /**
+     * Registers the client object in the player registry, if it is a
+     * player. The Agitator removes it again when the entry point ends.
+     */
+    public void register() throws java.rmi.RemoteException {
+      if (myObj instanceof PlayerInterface)
+        myEntry = players.register((PlayerInterface) myObj);
+    }
+
+    /**
+     * Serializes the client object into the spill file, to be restarted
+     * at the entry point cb when ms milliseconds have passed. Does
+     * nothing if passivation is not started, the sleep is too short,
+     * or the object can not be serialized.
+     *
+     * @return True if the object was passivated.
+     */
+    protected boolean passivate(String cb, Object[] args, long ms) {
+      SpillStore store = spill;
+      if (store == null || passivated || ms < getIntProperty("passivateafter", 100))
+        return false;
+
+      byte[] state;
+      try {
+        entryPoints.resolve(myObj.getClass(), cb, args);
+        state = NioProtocol.toBytes(new Object[] {myObj, cb, args});
+      } catch (NoSuchMethodException | java.io.IOException e) {
+        trace.record(EventRing.Type.FAILURE, traceId,
+            trace.name(e.getClass().getName()), 0);
+        return false;
+      }
+
+      long handle = store.put(state);
+      if (handle < 0)
+        return false;
+
+      passivated = true;
+      sleepers.add(new Sleeper(handle, System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(ms), myLoader));
+      trace.record(EventRing.Type.PASSIVATE, traceId,
+          trace.name(myObj.getClass().getName()), ms);
+      return true;
     }
 
     /**
-     * Overrides the default run() method in class Thread (a superclass to
-     * us). Then we invoke the requested entry point on the client object.
+     * Invokes the requested entry point on the client object. Engine
+     * threads may be reused, so the previous context classloader is
+     * restored when the entry point returns. Whether the entry point
+     * returns or throws, a player is removed from the registry. An
+     * agent that was passivated stays resident.
      */
     public void run() {
+      Thread self = Thread.currentThread();
+      ClassLoader previous = self.getContextClassLoader();
+      self.setContextClassLoader(myLoader);
+      running.set(this);
+      try {
+        Object ignored = (Object) myHandle.invokeExact(myObj, myArgs);
+      } catch (Throwable t) {
+        trace.record(EventRing.Type.FAILURE, traceId,
+            trace.name(t.getClass().getName()), 0);
+        log.severe(t.getMessage());
+      } finally {
+        running.remove();
+        self.setContextClassLoader(previous);
+        end();
+      }
+    }
+
+    /**
+     * Runs one step of a SteppedAgent, in the same context as run. When
+     * the agent ends or throws, it is removed as if its entry method
+     * had returned.
+     *
+     * @return The milliseconds until the next step, or
+     *         SteppedAgent.DONE.
+     */
+    public long step() {
+      Thread self = Thread.currentThread();
+      ClassLoader previous = self.getContextClassLoader();
+      self.setContextClassLoader(myLoader);
+      running.set(this);
+      long next = SteppedAgent.DONE;
       try {
-        myMethod.invoke(myObj, myArgs);
+        next = ((SteppedAgent) myObj).step();
       } catch (Throwable t) {
+        trace.record(EventRing.Type.FAILURE, traceId,
+            trace.name(t.getClass().getName()), 0);
         log.severe(t.getMessage());
+      } finally {
+        running.remove();
+        self.setContextClassLoader(previous);
+        if (next < 0)
+          end();
+      }
+      return next;
+    }
+
+    /**
+     * Ends the residency of the agent. An agent that was passivated
+     * stays resident.
+     */
+    protected void end() {
+      if (!passivated)
+        residents.decrementAndGet();
+      if (myEntry != null && players.deregister(myEntry)) {
+        trace.record(EventRing.Type.DEPART, traceId,
+            EventRing.hash(myEntry.getName()), myEntry.getResidencyMillis());
+        if (log.isLoggable(Level.FINE)) {
+          log.fine(String.format("departed uuid=%s residency=%dms",
+              myEntry.getUUID(), myEntry.getResidencyMillis()));
+        }
       }
+      if (handoff != null) {
+        handoff.enqueue();
+        handoff = null;
+      }
+    }
+
+    /**
+     * Queues the agent for the admission thread of its Bailiff, which
+     * has already reserved a place for it.
+     */
+    protected void enqueue() {
+      admissions.add(this);
+      metrics.accepted();
     }
   } // class Agitator
 
+  /* ================ P a s s i v a t i o n ================ */
+
+  /**
+   * A passivated agent waiting for its wakeup time. Only the handle of
+   * its state in the spill file and its class loader stay on the heap.
+   */
+  protected static final class Sleeper implements Delayed {
+    final long handle;
+    final long wakeAtNs;
+    final ClassLoader loader;
+
+    Sleeper(long handle, long wakeAtNs, ClassLoader loader) {
+      this.handle = handle;
+      this.wakeAtNs = wakeAtNs;
+      this.loader = loader;
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(wakeAtNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public int compareTo(Delayed o) {
+      return Long.compare(wakeAtNs, ((Sleeper) o).wakeAtNs);
+    }
+  }
+
+  /**
+   * Lets an agent sleep without holding a thread or heap space. Called
+   * by an agent from its own thread in a Bailiff, this serializes the
+   * agent into the Bailiff's spill file and returns true; the agent must
+   * then return from its entry method at once. When ms milliseconds
+   * have passed, the Bailiff deserializes the agent and calls its entry
+   * method cb with args, as if the agent had migrated in.
+   *
+   * The call returns false, and the agent should sleep as usual, if it
+   * does not run in a Bailiff, the Bailiff has not started passivation,
+   * the sleep is shorter than the property passivateafter, or the spill
+   * file is full. Players are never passivated, because the Bailiff and
+   * other players change their tag state while they sleep.
+   *
+   * @param agent The calling agent.
+   * @param cb    The entry method to call on wakeup.
+   * @param args  The arguments of the entry method.
+   * @param ms    The sleep time in milliseconds.
+   * @return True if the agent was passivated.
+   */
+  public static boolean passivate(Object agent, String cb, Object[] args, long ms) {
+    Agitator agt = running.get();
+    if (agt == null || agt.myObj != agent || agt.myEntry != null)
+      return false;
+    return agt.passivate(cb, args, ms);
+  }
+
+  /**
+   * Starts passivating sleeping agents into a new temporary spill file.
+   *
+   * @param capacity The size of the spill file in bytes, at most 2 GB.
+   * @return The spill store.
+   * @throws IOException Thrown if the file can not be created.
+   */
+  public synchronized SpillStore startSpill(long capacity) throws IOException {
+    if (spill == null) {
+      spill = SpillStore.createTemp("bailiff-" + id + "-", capacity);
+      metrics.setSpillStore(spill);
+      waker = new Thread(this::wakeLoop, "spill-" + id);
+      waker.setDaemon(true);
+      waker.start();
+      log.info(String.format("Passivating agents to %s", spill));
+    }
+    return spill;
+  }
+
+  /**
+   * Takes agents from the spill file when their time has come and
+   * hands them to the engine.
+   */
+  private void wakeLoop() {
+    for (;;) {
+      Sleeper s;
+      try {
+        s = sleepers.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      Thread.currentThread().setContextClassLoader(s.loader);
+      try {
+        byte[] state = spill.take(s.handle);
+        Object[] m = (Object[]) NioProtocol.fromBytes(state, 0, state.length);
+        Agitator agt = new Agitator(m[0], (String) m[1], (Object[]) m[2]);
+        agt.initialize();
+        engine.execute(agt);
+        trace.record(EventRing.Type.ACTIVATE, traceId,
+            trace.name(m[0].getClass().getName()),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - s.wakeAtNs));
+      } catch (Exception e) {
+        residents.decrementAndGet();
+        trace.record(EventRing.Type.FAILURE, traceId,
+            trace.name(e.getClass().getName()), 0);
+        log.severe(String.format("Failed to reactivate agent: %s", e.toString()));
+      }
+    }
+  }
+
   /* ================ B a i l i f f I n t e r f a c e ================ */
 
   /**
@@ -180,7 +457,9 @@ public class Bailiff
    * @returns The property value.
    */
   public String getProperty(String key) {
-    log.fine(String.format("getProperty key=%s", key));
+    trace.record(EventRing.Type.PROPERTY, traceId, EventRing.hash(key), 0);
+    if (log.isLoggable(Level.FINE))
+      log.fine(String.format("getProperty key=%s", key));
 
     return propertyMap.get(key.toLowerCase());
   }
@@ -192,60 +471,316 @@ public class Bailiff
    * @param value The value of the property.
    */
   public void setProperty(String key, String value) {
-    log.fine(String.format("setProperty key=%s value=%s", key, value));
+    trace.record(EventRing.Type.PROPERTY, traceId, EventRing.hash(key), 1);
+    if (log.isLoggable(Level.FINE))
+      log.fine(String.format("setProperty key=%s value=%s", key, value));
 
     propertyMap.put(key.toLowerCase(), value);
   }
 
+  /**
+   * Returns the integer property stored under key, or the default
+   * value if the property is not set or not a number.
+   */
+  protected int getIntProperty(String key, int defaultValue) {
+    String value = propertyMap.get(key);
+    if (value == null)
+      return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   /**
    * Entry point for remote clients who want to pass an object to be
-   * executed by the Bailiff. The Bailiff starts a new thread for the
-   * object and calls the specified entry (callback) method. When that
-   * method returns, the thread exits and the object becomes inert.
+   * executed by the Bailiff. The entry method is resolved and the object
+   * is placed in the admission queue, from which the Bailiff starts a
+   * new thread for the object and calls the specified entry (callback)
+   * method. The call returns as soon as the object is queued. When the
+   * entry method returns, the thread exits and the object becomes inert.
+   *
+   * An agent running in this JVM may call this method directly, as
+   * BailiffDirectory does for the rooms of a BailiffRuntime. Then the
+   * object itself moves, not a copy: its place here is reserved at
+   * once, but it is only admitted when its entry method or step in the
+   * Bailiff it leaves has returned.
    * 
    * @param obj  The object to execute.
    * @param cb   The name of the entry (callback) method to call.
    * @param args Array of arguments to the entry method. The elements in
    *             the array must match the entry method's signature.
-   * @throws NoSuchMethodException Thrown if the specified entry method
-   *                               does not exist with the expected signature.
+   * @throws NoSuchMethodException       Thrown if the specified entry method
+   *                                     does not exist with the expected
+   *                                     signature.
+   * @throws BailiffOverloadedException Thrown if the Bailiff already hosts
+   *                                     maxagents agents or its admission
+   *                                     queue is full.
    */
   public void migrate(Object obj, String cb, Object[] args)
-      throws java.rmi.RemoteException, NoSuchMethodException {
-    if (log.isLoggable(Level.FINE)) {
-      log.fine(String.format("migrate obj=%s cb=%s args=%s",
-          obj.toString(),
-          cb,
-          Arrays.toString(args)));
+      throws java.rmi.RemoteException, NoSuchMethodException,
+      BailiffOverloadedException {
+    long t0 = System.nanoTime();
+    try {
+      if (log.isLoggable(Level.FINE)) {
+        log.fine(String.format("migrate obj=%s cb=%s args=%s",
+            obj.toString(),
+            cb,
+            Arrays.toString(args)));
+      }
+
+      Agitator agt = new Agitator(obj, cb, args);
+      agt.initialize();
+      reserve(1);
+      place(agt);
+      trace.record(EventRing.Type.MIGRATE, traceId,
+          trace.name(obj.getClass().getName()), residents.get());
+    } finally {
+      metrics.record(BailiffMetrics.Op.MIGRATE, t0);
+    }
+  }
+
+  /**
+   * Entry point for remote clients who pass many agents at once, to
+   * drain or rebalance a Bailiff in one call. Every agent is resolved,
+   * reserved and queued as by migrate, and an agent running in this JVM
+   * is handed over as migrate does.
+   *
+   * If atomic is true, the places of all agents are reserved at once,
+   * so either all of them are queued or none is. Otherwise each agent
+   * is reserved on its own, and refusals are reported in its result
+   * instead of thrown.
+   *
+   * @param batch  The agents with their entry methods and arguments.
+   * @param atomic True to accept all agents or none.
+   * @return The result for every agent, in the order of the batch.
+   * @throws NoSuchMethodException       Thrown if atomic is true and an
+   *                                     entry method does not exist with
+   *                                     the expected signature.
+   * @throws BailiffOverloadedException Thrown if atomic is true and the
+   *                                     Bailiff can not take all agents.
+   */
+  public MigrationResult[] migrateBatch(MigrationRequest[] batch, boolean atomic)
+      throws java.rmi.RemoteException, NoSuchMethodException,
+      BailiffOverloadedException {
+    long t0 = System.nanoTime();
+    try {
+      if (log.isLoggable(Level.FINE)) {
+        log.fine(String.format("migrateBatch n=%d atomic=%b",
+            batch.length, atomic));
+      }
+
+      MigrationResult[] results = new MigrationResult[batch.length];
+      Agitator[] agts = new Agitator[batch.length];
+
+      for (int i = 0; i < batch.length; i++) {
+        MigrationRequest r = batch[i];
+        agts[i] = new Agitator(r.getAgent(), r.getCallback(), r.getArgs());
+        try {
+          agts[i].initialize();
+        } catch (NoSuchMethodException e) {
+          if (atomic)
+            throw e;
+          agts[i] = null;
+          results[i] = new MigrationResult(MigrationResult.Status.NO_SUCH_METHOD,
+              e.getMessage(), 0);
+        }
+      }
+
+      if (atomic)
+        reserve(batch.length);
+
+      int accepted = 0;
+      for (int i = 0; i < batch.length; i++) {
+        if (agts[i] == null)
+          continue;
+        if (!atomic) {
+          try {
+            reserve(1);
+          } catch (BailiffOverloadedException e) {
+            results[i] = new MigrationResult(MigrationResult.Status.OVERLOADED,
+                e.getMessage(), e.getRetryAfterMillis());
+            continue;
+          }
+        }
+        place(agts[i]);
+        results[i] = new MigrationResult(MigrationResult.Status.ACCEPTED, null, 0);
+        accepted++;
+      }
+
+      trace.record(EventRing.Type.BATCH, traceId, accepted,
+          batch.length - accepted);
+      return results;
+    } finally {
+      metrics.record(BailiffMetrics.Op.MIGRATE_BATCH, t0);
+    }
+  }
+
+  /**
+   * Queues an agent whose place is reserved. If the agent is the one
+   * running on the calling thread in a room of this JVM, it is handed
+   * over instead, and queued when its Agitator there ends.
+   */
+  protected void place(Agitator agt) {
+    Agitator from = running.get();
+    if (from != null && from.myObj == agt.myObj && from.handoff == null)
+      from.handoff = agt;
+    else
+      agt.enqueue();
+  }
+
+  /**
+   * Reserves places for count agents, or refuses them all if the
+   * Bailiff can not take that many. The places in the admission queue
+   * and among the residents are both taken with CAS, so concurrent
+   * reservations can not overshoot either bound. The agents must then
+   * be queued with enqueue or place.
+   * 
+   * @throws BailiffOverloadedException Thrown if the agents are refused.
+   */
+  protected void reserve(int count) throws BailiffOverloadedException {
+    int maxAgents = getIntProperty("maxagents", 0);
+    int maxQueue = getIntProperty("admitqueue", 1024);
+    long retryAfter = getIntProperty("retryafter", 500);
+
+    // Agents the engine can not start at once wait in its queue, which
+    // is bounded for the pool engine
+    int engineRoom = engine.getQueueCapacity() - engine.getQueueDepth();
+
+    for (;;) {
+      int q = queued.get();
+      if (maxQueue < q + count) {
+        metrics.rejected();
+        trace.record(EventRing.Type.REJECT, traceId, residents.get(), q);
+        throw new BailiffOverloadedException(String.format(
+            "%s admission queue is full (%d)", id, maxQueue), retryAfter);
+      }
+      if (engineRoom - q < count) {
+        metrics.rejected();
+        trace.record(EventRing.Type.REJECT, traceId, residents.get(), q);
+        throw new BailiffOverloadedException(String.format(
+            "%s agent engine queue is full (%d)", id, engine.getQueueCapacity()),
+            retryAfter);
+      }
+      if (queued.compareAndSet(q, q + count))
+        break;
     }
 
-    // Add a new Player to the map
-    if (obj instanceof Player) {
-      PlayerInterface p = (PlayerInterface) obj;
-      this.playerMap.put(p.getUUID(), p);
+    for (;;) {
+      int n = residents.get();
+      if (0 < maxAgents && maxAgents < n + count) {
+        queued.addAndGet(-count);
+        metrics.rejected();
+        trace.record(EventRing.Type.REJECT, traceId, n, admissions.size());
+        throw new BailiffOverloadedException(String.format(
+            "%s hosts the maximum of %d agents", id, maxAgents), retryAfter);
+      }
+      if (residents.compareAndSet(n, n + count))
+        break;
+    }
+  }
+
+  /**
+   * The admission thread takes accepted agents from the queue, adds
+   * players to the registry and hands the agents to the engine.
+   */
+  private void admitLoop() {
+    for (;;) {
+      Agitator agt;
+      try {
+        agt = admissions.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      queued.decrementAndGet();
+
+      try {
+        // Add a new Player to the registry
+        agt.register();
+        launch(agt);
+      } catch (Exception e) {
+        residents.decrementAndGet();
+        if (agt.myEntry != null)
+          players.deregister(agt.myEntry);
+        trace.record(EventRing.Type.FAILURE, traceId,
+            trace.name(e.getClass().getName()), 0);
+        log.severe(String.format("Failed to start agent: %s", e.toString()));
+      }
     }
+  }
 
-    Agitator agt = new Agitator(obj, cb, args);
-    agt.initialize();
-    agt.start();
+  /**
+   * Starts an admitted agent: a SteppedAgent on the step scheduler, if
+   * stepping is started, and any other agent on the engine.
+   */
+  protected void launch(Agitator agt) {
+    StepScheduler s = stepper;
+    if (s != null && agt.myObj instanceof SteppedAgent)
+      s.start(agt::step);
+    else
+      engine.execute(agt);
+  }
+
+  /**
+   * Starts running SteppedAgents on a step scheduler instead of lending
+   * each of them a thread. Agents already running are not affected.
+   *
+   * @param threads The number of timer threads of the scheduler.
+   * @return The step scheduler.
+   */
+  public synchronized StepScheduler startStepping(int threads) {
+    if (stepper == null) {
+      stepper = new StepScheduler("step-" + id, threads);
+      metrics.setStepScheduler(stepper);
+      log.info(String.format("Stepping agents on %d threads", threads));
+    }
+    return stepper;
   }
 
   // ================ New Interface Methods Implementation ================
 
   /**
-   * Tag a player
+   * Tag a player. Fails at once if the player is not resident here,
+   * already it, or has started to migrate.
    * 
    * @param id
    * @throws java.rmi.RemoteException
    */
   public boolean tagPlayer(UUID id) throws java.rmi.RemoteException {
-    if (this.playerMap.containsKey(id)) {
-      // get the player
-      PlayerInterface p = this.playerMap.get(id);
-      // tag the player
-      return p.tag();
+    long t0 = System.nanoTime();
+    try {
+      return this.players.tag(id);
+    } finally {
+      metrics.record(BailiffMetrics.Op.TAG_PLAYER, t0);
+    }
+  }
+
+  /**
+   * Pass the tag from a player to another player in this Bailiff
+   * 
+   * @param tagger
+   * @return
+   * @throws java.rmi.RemoteException
+   */
+  public PlayerSummary tagNearbyPlayer(UUID tagger) throws java.rmi.RemoteException {
+    long t0 = System.nanoTime();
+    try {
+      PlayerRegistry.Entry victim = this.players.transferTag(tagger);
+      if (victim == null) {
+        return null;
+      }
+      PlayerRegistry.Entry from = this.players.get(tagger);
+      trace.record(EventRing.Type.TAG, traceId,
+          EventRing.hash(from != null ? from.getName() : null),
+          EventRing.hash(victim.getName()));
+      if (log.isLoggable(Level.FINE)) {
+        log.fine(String.format("tag from=%s to=%s", tagger, victim.getUUID()));
+      }
+      return victim.summarize();
+    } finally {
+      metrics.record(BailiffMetrics.Op.TAG_NEARBY_PLAYER, t0);
     }
-    return false;
   }
 
   /**
@@ -255,7 +790,91 @@ public class Bailiff
    * @throws java.rmi.RemoteException
    */
   public Map<UUID, PlayerInterface> getPlayers() throws java.rmi.RemoteException {
-    return this.playerMap;
+    long t0 = System.nanoTime();
+    try {
+      Map<UUID, PlayerInterface> map = new HashMap<>();
+      for (PlayerRegistry.Entry e : this.players.entries()) {
+        map.put(e.getUUID(), e.getPlayer());
+      }
+      return map;
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_PLAYERS, t0);
+    }
+  }
+
+  /**
+   * Return a summary of each resident player
+   * 
+   * @return
+   * @throws java.rmi.RemoteException
+   */
+  public PlayerSummary[] getRoster() throws java.rmi.RemoteException {
+    long t0 = System.nanoTime();
+    try {
+      List<PlayerSummary> roster = new ArrayList<>(this.players.size());
+      for (PlayerRegistry.Entry e : this.players.entries()) {
+        roster.add(e.summarize());
+      }
+      return roster.toArray(new PlayerSummary[roster.size()]);
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_ROSTER, t0);
+    }
+  }
+
+  /**
+   * Return one page of the roster, at most maxpage players
+   * 
+   * @param query
+   * @return
+   * @throws java.rmi.RemoteException
+   */
+  public RosterPage getRosterPage(RosterQuery query) throws java.rmi.RemoteException {
+    long t0 = System.nanoTime();
+    try {
+      return this.players.page(query, getIntProperty("maxpage", 1000));
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_ROSTER_PAGE, t0);
+    }
+  }
+
+  /**
+   * Return the roster changes since the given version
+   * 
+   * @param version
+   * @return
+   * @throws java.rmi.RemoteException
+   */
+  public RosterDelta getRosterSince(long version) throws java.rmi.RemoteException {
+    long t0 = System.nanoTime();
+    try {
+      return this.players.changesSince(version);
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_ROSTER_SINCE, t0);
+    }
+  }
+
+  /**
+   * Subscribe a listener to roster changes
+   * 
+   * @param listener
+   * @return
+   * @throws java.rmi.RemoteException
+   */
+  public boolean subscribe(BailiffListener listener) throws java.rmi.RemoteException {
+    log.fine("subscribe");
+    return this.events.subscribe(listener);
+  }
+
+  /**
+   * Unsubscribe a listener from roster changes
+   * 
+   * @param listener
+   * @return
+   * @throws java.rmi.RemoteException
+   */
+  public boolean unsubscribe(BailiffListener listener) throws java.rmi.RemoteException {
+    log.fine("unsubscribe");
+    return this.events.unsubscribe(listener);
   }
 
   /**
@@ -265,11 +884,16 @@ public class Bailiff
    * @throws java.rmi.RemoteException
    */
   public Map<UUID, String> getPlayersNames() throws java.rmi.RemoteException {
-    Map<UUID, String> names = new HashMap<>();
-    for (Map.Entry<UUID, PlayerInterface> entry : this.playerMap.entrySet()) {
-      names.put(entry.getKey(), entry.getValue().getName());
+    long t0 = System.nanoTime();
+    try {
+      Map<UUID, String> names = new HashMap<>();
+      for (PlayerRegistry.Entry e : this.players.entries()) {
+        names.put(e.getUUID(), e.getName());
+      }
+      return names;
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_PLAYERS_NAMES, t0);
     }
-    return names;
   }
 
   /**
@@ -279,7 +903,12 @@ public class Bailiff
    * @throws java.rmi.RemoteException
    */
   public int getNumberOfPlayers() throws java.rmi.RemoteException {
-    return this.playerMap.size();
+    long t0 = System.nanoTime();
+    try {
+      return this.players.size();
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_NUMBER_OF_PLAYERS, t0);
+    }
   }
 
   /**
@@ -289,17 +918,69 @@ public class Bailiff
    * @throws java.rmi.RemoteException
    */
   public Map<UUID, Boolean> getTaggedPlayers() throws java.rmi.RemoteException {
-    Map<UUID, Boolean> tagged = new HashMap<>();
-    for (Map.Entry<UUID, PlayerInterface> entry : this.playerMap.entrySet()) {
-      tagged.put(entry.getKey(), entry.getValue().isTagged());
+    long t0 = System.nanoTime();
+    try {
+      Map<UUID, Boolean> tagged = new HashMap<>();
+      for (PlayerRegistry.Entry e : this.players.entries()) {
+        tagged.put(e.getUUID(), e.getPlayer().isTagged());
+      }
+      return tagged;
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_TAGGED_PLAYERS, t0);
+    }
+  }
+
+  /**
+   * Exchange heartbeats with another Bailiff.
+   *
+   * @param digests The calling Bailiff's view of the mesh.
+   * @return This Bailiff's view of the mesh.
+   * @throws java.rmi.RemoteException
+   */
+  public BailiffDigest[] gossip(BailiffDigest[] digests) throws java.rmi.RemoteException {
+    long t0 = System.nanoTime();
+    try {
+      return this.gossip.exchange(digests);
+    } finally {
+      metrics.record(BailiffMetrics.Op.GOSSIP, t0);
+    }
+  }
+
+  /**
+   * Return this Bailiff's view of the mesh, from the local cache
+   *
+   * @return
+   * @throws java.rmi.RemoteException
+   */
+  public BailiffDigest[] getGlobalView() throws java.rmi.RemoteException {
+    long t0 = System.nanoTime();
+    try {
+      return this.gossip.getView();
+    } finally {
+      metrics.record(BailiffMetrics.Op.GET_GLOBAL_VIEW, t0);
     }
-    return tagged;
+  }
+
+  /**
+   * Makes the heartbeat digest of this Bailiff and renews containsIt.
+   *
+   * @param version The heartbeat count.
+   */
+  protected BailiffDigest digest(long version) {
+    try {
+      containsIt = players.containsTagged();
+    } catch (RemoteException never) {
+      // local players
+    }
+    return new BailiffDigest(serviceName, id, version, players.size(),
+        residents.get(), containsIt);
   }
 
   /* ================ C o n s t r u c t o r ================ */
 
   /**
-   * Creates a new Bailiff service instance.
+   * Creates a new Bailiff service instance that starts a new thread for
+   * every agent.
    * 
    * @param room  Informational text field used to designate the 'room'
    *              (physical or virtual) the Bailiff is running in.
@@ -322,6 +1003,86 @@ public class Bailiff
       throws java.rmi.RemoteException,
       java.net.UnknownHostException,
       java.io.IOException {
+    this(id, info, log, new AgentEngine.Legacy());
+  }
+
+  /**
+   * Creates a new Bailiff service instance, exported with the default
+   * RMI socket factories on an anonymous port.
+   * 
+   * @param id     The identification string of this Bailiff.
+   * @param info   The information string of this Bailiff.
+   * @param log    A Logger instance configured to accept entries.
+   * @param engine The engine that lends threads of execution to the
+   *               agents migrating into this Bailiff.
+   * @throws RemoteException
+   * @throws UnknownHostException Thrown if the local host address can not
+   *                              be determined.
+   * @throws IOException          Thrown if there is an I/O problem.
+   */
+  public Bailiff(String id, String info, Logger log, AgentEngine engine)
+      throws java.rmi.RemoteException,
+      java.net.UnknownHostException,
+      java.io.IOException {
+    this(id, info, log, engine, 0, null);
+  }
+
+  /**
+   * Creates a new Bailiff service instance.
+   * 
+   * @param id      The identification string of this Bailiff.
+   * @param info    The information string of this Bailiff.
+   * @param log     A Logger instance configured to accept entries.
+   * @param engine  The engine that lends threads of execution to the
+   *                agents migrating into this Bailiff.
+   * @param port    The TCP port the Bailiff is exported on, 0 for an
+   *                anonymous port.
+   * @param sockets The factory of the sockets carrying calls to this
+   *                Bailiff, on both the client and the server side, or
+   *                null for the default RMI socket factories.
+   * @throws RemoteException
+   * @throws UnknownHostException Thrown if the local host address can not
+   *                              be determined.
+   * @throws IOException          Thrown if there is an I/O problem.
+   */
+  public Bailiff(String id, String info, Logger log, AgentEngine engine,
+      int port, TunedSocketFactory sockets)
+      throws java.rmi.RemoteException,
+      java.net.UnknownHostException,
+      java.io.IOException {
+    this(id, info, log, engine, port, sockets, null);
+  }
+
+  /**
+   * Creates a new Bailiff service instance that shares its engine and
+   * entry point cache with other Bailiffs in this JVM, as the rooms of
+   * a BailiffRuntime do. Bailiffs exported on the same port with equal
+   * socket factories also share the RMI endpoint.
+   * 
+   * @param id          The identification string of this Bailiff.
+   * @param info        The information string of this Bailiff.
+   * @param log         A Logger instance configured to accept entries.
+   * @param engine      The engine that lends threads of execution to the
+   *                    agents migrating into this Bailiff.
+   * @param port        The TCP port the Bailiff is exported on, 0 for an
+   *                    anonymous port.
+   * @param sockets     The factory of the sockets carrying calls to this
+   *                    Bailiff, or null for the default RMI socket
+   *                    factories.
+   * @param entryPoints The cache of resolved entry methods, or null for
+   *                    a cache of this Bailiff's own.
+   * @throws RemoteException
+   * @throws UnknownHostException Thrown if the local host address can not
+   *                              be determined.
+   * @throws IOException          Thrown if there is an I/O problem.
+   */
+  public Bailiff(String id, String info, Logger log, AgentEngine engine,
+      int port, TunedSocketFactory sockets, EntryPointCache entryPoints)
+      throws java.rmi.RemoteException,
+      java.net.UnknownHostException,
+      java.io.IOException {
+    super(port, sockets, sockets);
+
     // Process constructor parameters
 
     if (log != null)
@@ -329,8 +1090,17 @@ public class Bailiff
     else
       throw new IllegalArgumentException("Logger is null");
 
+    if (engine != null)
+      this.engine = engine;
+    else
+      throw new IllegalArgumentException("AgentEngine is null");
+
+    if (entryPoints != null)
+      this.entryPoints = entryPoints;
+
     this.id = (id != null) ? id : this.id;
     this.info = (info != null) ? info : this.info;
+    this.traceId = trace.name(this.id);
 
     // Retrieve host and network information
 
@@ -348,8 +1118,9 @@ public class Bailiff
 
     // Make a log entry that we are starting.
 
-    log.info(String.format("STARTING id=%s info=%s host=%s debug=%b",
-        id, info, myHostName, debug));
+    log.info(String.format("STARTING id=%s info=%s host=%s debug=%b engine=%s"
+        + " sockets=%s", id, info, myHostName, debug, engine.getName(),
+        (sockets != null) ? sockets : "default"));
 
     // Compose the service name under which to register
 
@@ -357,6 +1128,33 @@ public class Bailiff
         + "." + id
         + "." + Integer.toString((int) (Math.random() * (float) 0x7FFF_FFFF));
 
+    // Start delivering roster changes to subscribers
+
+    events = new EventDispatcher(serviceName, 256, 2, log);
+    players.setChangeListener(events::publish);
+
+    // Publish the metrics
+
+    metrics = new BailiffMetrics(this.id, engine, players, admissions);
+    metrics.setEventDispatcher(events);
+
+    try {
+      metrics.registerMBean();
+    } catch (javax.management.JMException e) {
+      log.warning(String.format("Metrics MBean not registered: %s", e.toString()));
+    }
+
+    // Start the admission thread
+
+    admitter = new Thread(this::admitLoop, "admission-" + id);
+    admitter.setDaemon(true);
+    admitter.start();
+
+    // Join the mesh, gossiping with the Bailiffs in the rmiregistry
+
+    gossip = new BailiffGossip(serviceName, this::digest);
+    metrics.setGossip(gossip);
+
     // Register with the default rmiregistry
 
     Naming.rebind("///" + serviceName, this);
@@ -364,6 +1162,26 @@ public class Bailiff
     log.info(String.format("Registered as %s", serviceName));
   }
 
+  /**
+   * Starts serving the operations of this Bailiff over the NIO transport
+   * as well, and advertises its endpoint as host:port in the property
+   * "nio". Clients that find the property may use a NioBailiffClient
+   * instead of the RMI stub.
+   *
+   * @param port The TCP port, or 0 for any free port.
+   * @return The TCP port the transport listens on.
+   * @throws IOException Thrown if the port can not be bound.
+   */
+  public synchronized int startNio(int port) throws java.io.IOException {
+    if (nio == null) {
+      nio = new NioBailiffServer(this, port,
+          2 * Runtime.getRuntime().availableProcessors(), log);
+      propertyMap.put("nio", myInetAddress.getHostAddress() + ":" + nio.getPort());
+      log.info(String.format("NIO transport on port %d", nio.getPort()));
+    }
+    return nio.getPort();
+  }
+
   /**
    * Unbind (remove) this Bailiff from the rmiregistry
    */
@@ -376,6 +1194,39 @@ public class Bailiff
     }
   }
 
+  /**
+   * Closes this Bailiff: unbinds and unexports it, and stops its gossip,
+   * event delivery, metrics, NIO transport, admission thread, step
+   * scheduler and spill waker, and deletes its spill file, so that a
+   * Bailiff id can be reused in the same JVM. Agents already running
+   * finish on the engine, which is shared and not shut down. Agents
+   * still queued for admission, stepped or passivated are dropped.
+   */
+  public synchronized void close() {
+    unbind();
+    gossip.shutdown();
+    events.shutdown();
+    metrics.shutdown();
+    if (nio != null)
+      nio.shutdown();
+    admitter.interrupt();
+    if (stepper != null)
+      stepper.shutdown();
+    if (waker != null)
+      waker.interrupt();
+    SpillStore store = spill;
+    if (store != null) {
+      spill = null;
+      store.close();
+    }
+    try {
+      unexportObject(this, true);
+    } catch (java.rmi.NoSuchObjectException e) {
+      // already unexported
+    }
+    log.info(String.format("Closed %s", serviceName));
+  }
+
   /**
    * Returns a string representation of this service instance.
    * 
@@ -391,20 +1242,48 @@ public class Bailiff
 
   private static void showUsage() {
     String[] msg = {
-        "Usage: {'?',-h,-help}|[-id string][-info string][-log n]",
+        "Usage: {'?',-h,-help}|[-id string][-info string][-log n]"
+            + "[-engine name][-threads n][-max n][-queue n]"
+            + "[-metrics port][-trace file]"
+            + "[-port n][-connect ms][-read ms][-buffers n]"
+            + "[-nodelay b][-keepalive b][-nio port][-spill mb]"
+            + "[-stepped n]",
         "? -h help     This message",
         "-id   string  Sets the identification string of this Bailiff",
         "-info string  Sets the information message of this Bailiff",
         "-log  n       Sets the logging level, higher is more:",
         "  -log 0        Level.OFF",
         "  -log 3        Level.INFO",
-        "  -log 7        Level.ALL"
+        "  -log 7        Level.ALL",
+        "-engine name  Sets how agents get their threads of execution:",
+        "  -engine legacy  A new thread for every agent (default)",
+        "  -engine pool    A bounded pool of threads, see -threads; for",
+        "                  stepped or short-lived agents, see AgentEngine",
+        "  -engine virtual A virtual thread for every agent (Java 21+)",
+        "-threads n    Sets the number of threads of the pool engine",
+        "-max  n       Sets the maximum number of resident agents",
+        "-queue n      Sets the maximum number of agents waiting to start",
+        "-metrics port Serves Prometheus metrics on 127.0.0.1:port/metrics",
+        "              and the event trace on 127.0.0.1:port/trace",
+        "-trace file   Writes the event trace to file on exit, see EventRing",
+        "-port n       Sets the TCP port of the Bailiff (0, any free port)",
+        "-connect ms   Sets the connect deadline of clients (5000, 0 is none)",
+        "-read ms      Sets the read deadline of every call (10000, 0 is none)",
+        "-buffers n    Sets the socket buffer sizes in bytes (system default)",
+        "-nodelay b    Sets TCP_NODELAY, true or false (true)",
+        "-keepalive b  Sets SO_KEEPALIVE, true or false (true)",
+        "-nio port     Also serves migrate, tag and roster calls over the",
+        "              NIO transport on port (0, any free port)",
+        "-spill mb     Passivates sleeping agents into a spill file of mb",
+        "              megabytes instead of keeping their threads",
+        "-stepped n    Runs stepped agents, such as Dexter and Player, on n",
+        "              timer threads instead of a thread each"
     };
     for (String s : msg)
       System.out.println(s);
   }
 
-  private static Level setLoglevelFromCmdLine(String s) {
+  static Level setLoglevelFromCmdLine(String s) {
     switch (Integer.parseInt(s)) {
       case 0:
         return Level.OFF;
@@ -436,6 +1315,21 @@ public class Bailiff
     String id = null;
     String info = null;
     Level logLevel = Level.ALL;
+    String engineName = "legacy";
+    int threads = 2 * Runtime.getRuntime().availableProcessors();
+    String maxAgents = null;
+    String admitQueue = null;
+    int metricsPort = -1;
+    String traceFile = null;
+    int port = 0;
+    int connectTimeout = 5000;
+    int readTimeout = 10000;
+    int buffers = 0;
+    boolean noDelay = true;
+    boolean keepAlive = true;
+    int nioPort = -1;
+    int spillMb = 0;
+    int stepThreads = 0;
 
     int state = 0;
 
@@ -453,6 +1347,36 @@ public class Bailiff
             state = 2;
           else if (av.equals("-log"))
             state = 3;
+          else if (av.equals("-engine"))
+            state = 4;
+          else if (av.equals("-threads"))
+            state = 5;
+          else if (av.equals("-max"))
+            state = 6;
+          else if (av.equals("-queue"))
+            state = 7;
+          else if (av.equals("-metrics"))
+            state = 8;
+          else if (av.equals("-trace"))
+            state = 9;
+          else if (av.equals("-port"))
+            state = 10;
+          else if (av.equals("-connect"))
+            state = 11;
+          else if (av.equals("-read"))
+            state = 12;
+          else if (av.equals("-buffers"))
+            state = 13;
+          else if (av.equals("-nodelay"))
+            state = 14;
+          else if (av.equals("-keepalive"))
+            state = 15;
+          else if (av.equals("-nio"))
+            state = 16;
+          else if (av.equals("-spill"))
+            state = 17;
+          else if (av.equals("-stepped"))
+            state = 18;
           else {
             System.err.println("Unknown commandline argument: " + av);
             return;
@@ -473,13 +1397,132 @@ public class Bailiff
           logLevel = setLoglevelFromCmdLine(av);
           state = 0;
           break;
+
+        case 4:
+          engineName = av;
+          state = 0;
+          break;
+
+        case 5:
+          threads = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 6:
+          maxAgents = av;
+          state = 0;
+          break;
+
+        case 7:
+          admitQueue = av;
+          state = 0;
+          break;
+
+        case 8:
+          metricsPort = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 9:
+          traceFile = av;
+          state = 0;
+          break;
+
+        case 10:
+          port = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 11:
+          connectTimeout = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 12:
+          readTimeout = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 13:
+          buffers = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 14:
+          noDelay = Boolean.parseBoolean(av);
+          state = 0;
+          break;
+
+        case 15:
+          keepAlive = Boolean.parseBoolean(av);
+          state = 0;
+          break;
+
+        case 16:
+          nioPort = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 17:
+          spillMb = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 18:
+          stepThreads = Integer.parseInt(av);
+          state = 0;
+          break;
       } // switch
     } // for
 
     Logger log = Logger.getAnonymousLogger();
     log.setLevel(logLevel);
 
-    new Bailiff(id, info, log);
+    AgentEngine engine;
+
+    try {
+      engine = AgentEngine.create(engineName, threads);
+    } catch (IllegalArgumentException | UnsupportedOperationException e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+
+    TunedSocketFactory sockets;
+
+    try {
+      sockets = new TunedSocketFactory(connectTimeout, readTimeout,
+          noDelay, keepAlive, buffers);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+
+    Bailiff bf = new Bailiff(id, info, log, engine, port, sockets);
+
+    if (maxAgents != null)
+      bf.setProperty("maxagents", maxAgents);
+    if (admitQueue != null)
+      bf.setProperty("admitqueue", admitQueue);
+    if (0 <= metricsPort) {
+      int httpPort = bf.metrics.startHttp(metricsPort);
+      log.info(String.format("Metrics on http://127.0.0.1:%d/metrics", httpPort));
+    }
+    if (0 <= nioPort)
+      bf.startNio(nioPort);
+    if (0 < spillMb)
+      bf.startSpill((long) spillMb << 20);
+    if (0 < stepThreads)
+      bf.startStepping(stepThreads);
+    if (traceFile != null) {
+      final String file = traceFile;
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          EventRing.shared().dump(file);
+        } catch (IOException e) {
+          System.err.printf("When writing the event trace: %s\n", e.toString());
+        }
+      }, "trace-dump"));
+    }
 
   } // main
 
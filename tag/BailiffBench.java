@@ -0,0 +1,435 @@
+// BailiffBench.java
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BailiffBench measures the hot paths of the Bailiff, so that a change
+ * to Bailiff, Player or Dexter can be judged by numbers rather than by
+ * debug output. It is a plain program without dependencies: it is
+ * compiled with the other sources and started like a Bailiff.
+ *
+ *   > java BailiffBench
+ *
+ * Every benchmark runs a number of warmup iterations, whose results are
+ * discarded, followed by measured iterations of a fixed duration. The
+ * score is the mean time per operation over the measured iterations,
+ * with the standard deviation between iterations as the error.
+ *
+ * The benchmarks are:
+ *
+ * agitator     Local calls of migrate with an agent whose entry point
+ *              returns at once. Covers creating the Agitator, resolving
+ *              the entry point, admission and dispatch by the engine.
+ *              Each iteration waits until all its agents have ended.
+ *
+ * roster       Local calls of getPlayers, getPlayersNames,
+ *              getTaggedPlayers and getRoster with 10 to 100000
+ *              resident players (see -sizes), and reads of the whole
+ *              roster with getRosterPage, 500 players per page.
+ *
+ * roster-rmi   The same queries through the RMI stub of the Bailiff,
+ *              including the serialization of the results.
+ *
+ * serialize    A Player written to and read back from a byte array.
+ *
+ * migrate      Calls of migrate through the RMI stub of a Bailiff in
+ *              the same JVM, including the serialization of the agent.
+ *
+ * migrate-batch  Calls of migrateBatch through the RMI stub, with 64
+ *              agents per call (see -batch). The score is per call.
+ *
+ * The Bailiff is registered with the rmiregistry on the default port.
+ * If no rmiregistry is running, one is created in this JVM.
+ */
+public class BailiffBench {
+
+  // Consumes results so that the JIT can not drop the work
+  private static volatile int sink;
+
+  // Benchmark configuration, set from the commandline
+  private int warmups = 3;
+  private int iterations = 5;
+  private long iterationMs = 1000;
+  private int[] sizes = {10, 100, 1000, 10000, 100000};
+  private String engineName = "pool";
+  private int threads = 2 * Runtime.getRuntime().availableProcessors();
+  private int batchSize = 64;
+
+  // The Bailiff under test and its stub
+  private Bailiff bailiff;
+  private BailiffInterface stub;
+
+  /**
+   * The agent migrated by the agitator and migrate benchmarks. Its entry
+   * point returns at once, so the measurement is of the Bailiff only.
+   */
+  public static class Noop implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public void run() {
+    }
+  }
+
+  /**
+   * One operation of a benchmark.
+   */
+  private interface Op {
+    void run() throws Exception;
+  }
+
+  /* ================ H a r n e s s ================ */
+
+  /**
+   * Runs the operation repeatedly for the configured warmup and
+   * measured iterations and prints the score.
+   *
+   * @param name   The name of the benchmark.
+   * @param param  The parameter of the benchmark, or the empty string.
+   * @param op     The operation to measure.
+   * @param settle Run at the end of every iteration, inside the timed
+   *               interval, or null. Used to wait for asynchronous work
+   *               started by the operations.
+   */
+  private void measure(String name, String param, Op op, Op settle)
+      throws Exception {
+    double[] scores = new double[iterations];
+
+    for (int i = -warmups; i < iterations; i++) {
+      long ops = 0;
+      long t0 = System.nanoTime();
+      long deadline = t0 + TimeUnit.MILLISECONDS.toNanos(iterationMs);
+      long t1;
+      do {
+        op.run();
+        ops++;
+        t1 = System.nanoTime();
+      } while (t1 < deadline);
+      if (settle != null) {
+        settle.run();
+        t1 = System.nanoTime();
+      }
+      if (0 <= i)
+        scores[i] = (double) (t1 - t0) / ops;
+    }
+
+    double mean = 0;
+    for (double s : scores)
+      mean += s;
+    mean /= scores.length;
+
+    double var = 0;
+    for (double s : scores)
+      var += (s - mean) * (s - mean);
+    double error = (1 < scores.length) ? Math.sqrt(var / (scores.length - 1)) : 0;
+
+    System.out.printf("%-28s %8s %4d %14.1f +- %10.1f  ns/op %12.0f ops/s%n",
+        name, param, scores.length, mean, error, 1e9 / mean);
+  }
+
+  /**
+   * Waits until every agent accepted by the Bailiff has ended.
+   */
+  private void drain() {
+    while (0 < bailiff.residents.get())
+      LockSupport.parkNanos(10_000);
+  }
+
+  /* ================ B e n c h m a r k s ================ */
+
+  private void agitator() throws Exception {
+    final Noop agent = new Noop();
+    final Object[] args = new Object[0];
+    measure("agitator", "", new Op() {
+      public void run() throws Exception {
+        bailiff.migrate(agent, "run", args);
+      }
+    }, this::drain);
+  }
+
+  private void migrate() throws Exception {
+    final Noop agent = new Noop();
+    final Object[] args = new Object[0];
+    measure("migrate", "", new Op() {
+      public void run() throws Exception {
+        stub.migrate(agent, "run", args);
+      }
+    }, this::drain);
+  }
+
+  private void migrateBatch() throws Exception {
+    final MigrationRequest[] batch = new MigrationRequest[batchSize];
+    for (int i = 0; i < batch.length; i++)
+      batch[i] = new MigrationRequest(new Noop(), "run", new Object[0]);
+    measure("migrate-batch", Integer.toString(batchSize), new Op() {
+      public void run() throws Exception {
+        sink += stub.migrateBatch(batch, true).length;
+      }
+    }, this::drain);
+  }
+
+  private void serialize() throws Exception {
+    final Player player = new Player();
+    player.setId("bench");
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+
+    measure("serialize", "", new Op() {
+      public void run() throws Exception {
+        bytes.reset();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(player);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+        sink += in.readObject().hashCode();
+      }
+    }, null);
+
+    System.out.printf("%-28s %8s %d bytes per Player%n", "serialize", "",
+        bytes.size());
+  }
+
+  /**
+   * Runs the roster queries for every resident count, against the
+   * given Bailiff interface.
+   */
+  private void roster(String prefix, final BailiffInterface bfi)
+      throws Exception {
+    List<PlayerRegistry.Entry> added = new ArrayList<>();
+
+    try {
+      for (int size : sizes) {
+        while (added.size() < size) {
+          Player p = new Player();
+          p.setId("p" + added.size());
+          added.add(bailiff.players.register(p));
+        }
+
+        String param = Integer.toString(size);
+
+        measure(prefix + ".getPlayers", param, new Op() {
+          public void run() throws Exception {
+            sink += bfi.getPlayers().size();
+          }
+        }, null);
+        measure(prefix + ".getPlayersNames", param, new Op() {
+          public void run() throws Exception {
+            sink += bfi.getPlayersNames().size();
+          }
+        }, null);
+        measure(prefix + ".getTaggedPlayers", param, new Op() {
+          public void run() throws Exception {
+            sink += bfi.getTaggedPlayers().size();
+          }
+        }, null);
+        measure(prefix + ".getRoster", param, new Op() {
+          public void run() throws Exception {
+            sink += bfi.getRoster().length;
+          }
+        }, null);
+        measure(prefix + ".getRosterPage", param, new Op() {
+          public void run() throws Exception {
+            RosterQuery q = new RosterQuery(500, false, false, null);
+            while (q != null) {
+              RosterPage page = bfi.getRosterPage(q);
+              sink += page.getPlayers().length;
+              q = page.getNext();
+            }
+          }
+        }, null);
+      }
+    } finally {
+      for (PlayerRegistry.Entry e : added)
+        bailiff.players.deregister(e);
+    }
+  }
+
+  /* ================ S e t u p ================ */
+
+  /**
+   * Creates the Bailiff under test, and the rmiregistry if none runs.
+   */
+  private void setUp() throws Exception {
+    try {
+      LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+    } catch (ExportException e) {
+      // An rmiregistry is already running
+    }
+
+    Logger log = Logger.getAnonymousLogger();
+    log.setLevel(Level.WARNING);
+
+    bailiff = new Bailiff("bench", "BailiffBench", log,
+        AgentEngine.create(engineName, threads, Integer.MAX_VALUE));
+    bailiff.setProperty("admitqueue", Integer.toString(Integer.MAX_VALUE));
+    stub = BailiffDirectory.shared().lookup(bailiff.serviceName);
+  }
+
+  private void run(Set<String> benchmarks) throws Exception {
+    setUp();
+    try {
+      System.out.printf("%-28s %8s %4s %14s   %10s  %5s%n",
+          "Benchmark", "Param", "Cnt", "Score", "Error", "Units");
+      for (String b : benchmarks) {
+        switch (b) {
+          case "agitator":
+            agitator();
+            break;
+          case "roster":
+            roster("roster", bailiff);
+            break;
+          case "roster-rmi":
+            roster("roster-rmi", stub);
+            break;
+          case "serialize":
+            serialize();
+            break;
+          case "migrate":
+            migrate();
+            break;
+          case "migrate-batch":
+            migrateBatch();
+            break;
+        }
+      }
+    } finally {
+      bailiff.unbind();
+    }
+  }
+
+  /* ================ m a i n ================ */
+
+  private static final List<String> BENCHMARKS = Arrays.asList(
+      "agitator", "roster", "roster-rmi", "serialize", "migrate",
+      "migrate-batch");
+
+  private static void showUsage() {
+    String[] msg = {
+        "Usage: {'?',-h,-help}|[-bench names][-sizes list][-wi n][-i n]"
+            + "[-time ms][-engine name][-threads n][-batch n]",
+        "? -h help     This message",
+        "-bench names  Comma-separated benchmarks to run, default all:",
+        "              " + String.join(",", BENCHMARKS),
+        "-sizes list   Comma-separated resident counts of the roster",
+        "              benchmarks, default 10,100,1000,10000,100000",
+        "-wi   n       Sets the number of warmup iterations (3)",
+        "-i    n       Sets the number of measured iterations (5)",
+        "-time ms      Sets the duration of an iteration (1000)",
+        "-engine name  Sets the agent engine of the Bailiff (pool)",
+        "-threads n    Sets the number of threads of the pool engine",
+        "-batch n      Sets the agents per call of migrate-batch (64)"
+    };
+    for (String s : msg)
+      System.out.println(s);
+  }
+
+  public static void main(String[] argv) throws Exception {
+    BailiffBench bench = new BailiffBench();
+    Set<String> benchmarks = new LinkedHashSet<>(BENCHMARKS);
+
+    int state = 0;
+
+    for (String av : argv) {
+
+      switch (state) {
+
+        case 0:
+          if (av.equals("?") || av.equals("-h") || av.equals("-help")) {
+            showUsage();
+            return;
+          } else if (av.equals("-bench"))
+            state = 1;
+          else if (av.equals("-sizes"))
+            state = 2;
+          else if (av.equals("-wi"))
+            state = 3;
+          else if (av.equals("-i"))
+            state = 4;
+          else if (av.equals("-time"))
+            state = 5;
+          else if (av.equals("-engine"))
+            state = 6;
+          else if (av.equals("-threads"))
+            state = 7;
+          else if (av.equals("-batch"))
+            state = 8;
+          else {
+            System.err.println("Unknown commandline argument: " + av);
+            return;
+          }
+          break;
+
+        case 1:
+          benchmarks = new LinkedHashSet<>(Arrays.asList(av.split(",")));
+          for (String b : benchmarks) {
+            if (!BENCHMARKS.contains(b)) {
+              System.err.println("Unknown benchmark: " + b);
+              return;
+            }
+          }
+          state = 0;
+          break;
+
+        case 2:
+          String[] s = av.split(",");
+          bench.sizes = new int[s.length];
+          for (int i = 0; i < s.length; i++)
+            bench.sizes[i] = Integer.parseInt(s[i].trim());
+          Arrays.sort(bench.sizes);
+          state = 0;
+          break;
+
+        case 3:
+          bench.warmups = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 4:
+          bench.iterations = Math.max(1, Integer.parseInt(av));
+          state = 0;
+          break;
+
+        case 5:
+          bench.iterationMs = Long.parseLong(av);
+          state = 0;
+          break;
+
+        case 6:
+          bench.engineName = av;
+          state = 0;
+          break;
+
+        case 7:
+          bench.threads = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 8:
+          bench.batchSize = Math.max(1, Integer.parseInt(av));
+          state = 0;
+          break;
+      } // switch
+    } // for
+
+    bench.run(benchmarks);
+
+    // The RMI runtime keeps the JVM alive
+    System.exit(0);
+  } // main
+
+} // class BailiffBench
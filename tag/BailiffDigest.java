@@ -0,0 +1,75 @@
+// BailiffDigest.java
+
+import java.io.Serializable;
+
+/**
+ * A BailiffDigest is an immutable heartbeat of one Bailiff: how many
+ * players and agents it hosts and whether one of its players is 'it'.
+ * Bailiffs exchange digests by gossip, so every Bailiff holds a recent
+ * digest of every other Bailiff in the mesh.
+ *
+ * The version is the heartbeat count of the Bailiff that made the
+ * digest. It increases with every gossip round of that Bailiff, so of
+ * two digests of the same Bailiff the one with the higher version is
+ * the more recent.
+ */
+public final class BailiffDigest implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String name;
+  private final String id;
+  private final long version;
+  private final int rosterSize;
+  private final int load;
+  private final boolean containsIt;
+
+  /**
+   * Creates a new digest.
+   *
+   * @param name       The service name of the Bailiff.
+   * @param id         The identification string of the Bailiff.
+   * @param version    The heartbeat count of the Bailiff.
+   * @param rosterSize The number of resident players.
+   * @param load       The number of resident agents, players or not.
+   * @param containsIt True if a resident player is 'it'.
+   */
+  public BailiffDigest(String name, String id, long version, int rosterSize,
+      int load, boolean containsIt) {
+    this.name = name;
+    this.id = id;
+    this.version = version;
+    this.rosterSize = rosterSize;
+    this.load = load;
+    this.containsIt = containsIt;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public int getRosterSize() {
+    return rosterSize;
+  }
+
+  public int getLoad() {
+    return load;
+  }
+
+  public boolean containsIt() {
+    return containsIt;
+  }
+
+  public String toString() {
+    return String.format("%s v%d players=%d load=%d%s", id, version,
+        rosterSize, load, containsIt ? " it" : "");
+  }
+}
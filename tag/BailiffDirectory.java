@@ -0,0 +1,227 @@
+// BailiffDirectory.java
+
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The BailiffDirectory is a per-JVM cache of the Bailiffs registered
+ * in the rmiregistry. It remembers the list of Bailiff names for a
+ * limited time (the TTL), and the stub of every Bailiff it has looked
+ * up until a call on that stub fails.
+ *
+ * All agents executing in the same JVM share the one directory, so
+ * agents arriving in a Bailiff use what earlier agents already found
+ * instead of querying the rmiregistry again.
+ *
+ * The TTL defaults to 5000 ms and can be set with the system property
+ * tag.directory.ttl (milliseconds) or with setTtl.
+ *
+ * Calls to the rmiregistry go through TunedSocketFactory.client(), so
+ * a registry that does not answer fails the call after the read
+ * deadline. Calls to the Bailiffs use the socket factory in their
+ * stubs. No lock is held during a call to the rmiregistry, so a slow
+ * registry only delays the agents that need it: while one agent lists
+ * the registry again, the others keep using the previous listing.
+ *
+ * With the system property tag.transport set to nio, lookup returns a
+ * NioBailiffClient for every Bailiff that advertises an NIO endpoint,
+ * and the RMI stub for the others.
+ *
+ * Bailiffs hosted in this JVM, such as the rooms of a BailiffRuntime,
+ * can be bound locally. Lookup then returns the Bailiff itself, so
+ * agents call it directly and migrate between rooms without
+ * serialization or network I/O.
+ */
+public class BailiffDirectory {
+
+  private static final BailiffDirectory shared =
+      new BailiffDirectory(Long.getLong("tag.directory.ttl", 5000L));
+
+  /**
+   * Returns the directory shared by all agents in this JVM.
+   */
+  public static BailiffDirectory shared() {
+    return shared;
+  }
+
+  // True to call Bailiffs over their NIO transport where they have one
+  private static final boolean nio = "nio".equals(System.getProperty("tag.transport"));
+
+  // How long the name list is valid, in milliseconds
+  private volatile long ttlMs;
+
+  /**
+   * The Bailiff names found by one listing of the rmiregistry.
+   */
+  private static final class Listing {
+    final String[] names;
+    final long listedAt;
+
+    Listing(String[] names, long listedAt) {
+      this.names = names;
+      this.listedAt = listedAt;
+    }
+  }
+
+  // The default rmiregistry, null until needed or after a failed call
+  private volatile Registry registry = null;
+
+  // The latest listing, null if there is none or it was invalidated,
+  // and whether a thread is listing the registry again
+  private volatile Listing listing = null;
+  private final AtomicBoolean relisting = new AtomicBoolean();
+
+  // Resolved stubs by name
+  private final ConcurrentHashMap<String, BailiffInterface> stubs =
+      new ConcurrentHashMap<>();
+
+  // Bailiffs in this JVM by name
+  private final ConcurrentHashMap<String, BailiffInterface> local =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a directory.
+   *
+   * @param ttlMs How long a listing of the rmiregistry is reused.
+   */
+  public BailiffDirectory(long ttlMs) {
+    setTtl(ttlMs);
+  }
+
+  /**
+   * Sets how long a listing of the rmiregistry is reused.
+   *
+   * @param ms The TTL in milliseconds. Zero disables caching.
+   */
+  public void setTtl(long ms) {
+    ttlMs = Math.max(0, ms);
+  }
+
+  /**
+   * Returns the names of the Bailiffs registered in the rmiregistry,
+   * listing the registry again only if the previous listing is older
+   * than the TTL.
+   *
+   * @throws RemoteException Thrown if the rmiregistry can not be
+   *                         reached.
+   */
+  public String[] list() throws RemoteException {
+    long now = System.currentTimeMillis();
+    Listing l = listing;
+
+    if (l != null && now - l.listedAt < ttlMs)
+      return l.names.clone();
+
+    // One thread lists the registry again; the others use the stale
+    // listing meanwhile, if there is one
+    boolean relister = relisting.compareAndSet(false, true);
+    if (!relister && l != null)
+      return l.names.clone();
+
+    try {
+      List<String> found = new ArrayList<>();
+      try {
+        for (String name : registry().list()) {
+          if (name.startsWith("Bailiff"))
+            found.add(name);
+        }
+      } catch (RemoteException e) {
+        registry = null;
+        listing = null;
+        stubs.clear();
+        throw e;
+      }
+      l = new Listing(found.toArray(new String[found.size()]), now);
+      listing = l;
+      return l.names.clone();
+    } finally {
+      if (relister)
+        relisting.set(false);
+    }
+  }
+
+  /**
+   * Returns the stub of the named Bailiff, looking it up in the
+   * rmiregistry only if it is not cached. With tag.transport=nio the
+   * stub may be a NioBailiffClient. A Bailiff bound locally is
+   * returned itself.
+   *
+   * @throws NotBoundException Thrown if the name is not bound, or not
+   *                           bound to a Bailiff.
+   * @throws RemoteException   Thrown if the rmiregistry can not be
+   *                           reached.
+   */
+  public BailiffInterface lookup(String name)
+      throws NotBoundException, RemoteException {
+    BailiffInterface bfi = local.get(name);
+    if (bfi == null)
+      bfi = stubs.get(name);
+
+    if (bfi == null) {
+      Remote service;
+      try {
+        service = registry().lookup(name);
+      } catch (RemoteException e) {
+        registry = null;
+        throw e;
+      }
+      if (!(service instanceof BailiffInterface))
+        throw new NotBoundException(name + " is not a Bailiff");
+      bfi = (BailiffInterface) service;
+      if (nio)
+        bfi = NioBailiffClient.wrap(bfi);
+      stubs.put(name, bfi);
+    }
+
+    return bfi;
+  }
+
+  /**
+   * Forgets the stub of the named Bailiff and the current listing.
+   * Call this when a call on the Bailiff has failed, so that the next
+   * list and lookup go to the rmiregistry.
+   */
+  public void invalidate(String name) {
+    stubs.remove(name);
+    listing = null;
+  }
+
+  /**
+   * Binds a Bailiff in this JVM under its service name, so that lookup
+   * returns it instead of a stub. The Bailiff must also be bound in the
+   * rmiregistry to be listed.
+   */
+  public void bindLocal(String name, BailiffInterface bailiff) {
+    local.put(name, bailiff);
+  }
+
+  /**
+   * Removes the local binding of the named Bailiff.
+   */
+  public void unbindLocal(String name) {
+    local.remove(name);
+    stubs.remove(name);
+  }
+
+  /**
+   * Returns the stub of the default rmiregistry. Making the stub does
+   * not call the registry, so threads that race here at most make one
+   * stub each.
+   */
+  private Registry registry() throws RemoteException {
+    Registry r = registry;
+    if (r == null) {
+      r = LocateRegistry.getRegistry(null, Registry.REGISTRY_PORT,
+          TunedSocketFactory.client());
+      registry = r;
+    }
+    return r;
+  }
+}
@@ -0,0 +1,200 @@
+// BailiffGossip.java
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * The BailiffGossip keeps one Bailiff's view of the mesh: the latest
+ * BailiffDigest of every Bailiff it has heard of, itself included.
+ *
+ * In every round the Bailiff makes a new digest of itself and
+ * exchanges its view with a few peers, chosen at random among the
+ * Bailiffs listed by the BailiffDirectory. The exchange is push-pull:
+ * the peer merges the view it is sent and returns its own, which is
+ * merged in turn. For every Bailiff the digest with the highest
+ * version is kept, so news reaches all n Bailiffs in about log n
+ * rounds, and no Bailiff is called by more than a few peers per round.
+ *
+ * A digest whose version has not advanced for the expiry time is
+ * dropped, since its Bailiff has stopped or become unreachable. It is
+ * remembered as dead for as long again, so that peers still gossiping
+ * its last digest do not bring it back. When that tombstone is dropped,
+ * BailiffHealth forgets the Bailiff too.
+ *
+ * The round interval, the fan-out and the expiry time are read from
+ * the system properties tag.gossip.ms (1000), tag.gossip.fanout (3)
+ * and tag.gossip.expiry (ten rounds). The rounds of all Bailiffs in a
+ * JVM run on two shared daemon threads.
+ */
+public class BailiffGossip {
+
+  private static final long intervalMs = Math.max(10L, Long.getLong("tag.gossip.ms", 1000L));
+  private static final int fanout = Math.max(1, Integer.getInteger("tag.gossip.fanout", 3));
+  private static final long expiryMs = Long.getLong("tag.gossip.expiry", 10 * intervalMs);
+
+  private static final ScheduledExecutorService timer =
+      Executors.newScheduledThreadPool(2, AgentEngine.daemonThreads("gossip"));
+
+  /**
+   * A digest and when its version last advanced here.
+   */
+  private static final class Known {
+    final BailiffDigest digest;
+    final long seenAtMs;
+    final boolean dead;
+
+    Known(BailiffDigest digest, long seenAtMs, boolean dead) {
+      this.digest = digest;
+      this.seenAtMs = seenAtMs;
+      this.dead = dead;
+    }
+  }
+
+  private final String self;
+  private final LongFunction<BailiffDigest> heartbeat;
+  private final ConcurrentHashMap<String, Known> view = new ConcurrentHashMap<>();
+  private final ScheduledFuture<?> rounds;
+
+  // The heartbeat count of this Bailiff
+  private long beats = 0; // only touched by the round
+
+  /**
+   * Starts gossiping.
+   *
+   * @param self      The service name of this Bailiff.
+   * @param heartbeat Makes the digest of this Bailiff with the given
+   *                  version.
+   */
+  public BailiffGossip(String self, LongFunction<BailiffDigest> heartbeat) {
+    this.self = self;
+    this.heartbeat = heartbeat;
+    offer(heartbeat.apply(++beats));
+    rounds = timer.scheduleWithFixedDelay(this::round,
+        ThreadLocalRandom.current().nextLong(intervalMs), intervalMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Merges the digests of a peer into the view and returns the view.
+   */
+  public BailiffDigest[] exchange(BailiffDigest[] digests) {
+    if (digests != null) {
+      for (BailiffDigest d : digests)
+        offer(d);
+    }
+    return getView();
+  }
+
+  /**
+   * Returns the digests of the live Bailiffs in the view.
+   */
+  public BailiffDigest[] getView() {
+    List<BailiffDigest> live = new ArrayList<>(view.size());
+    for (Known k : view.values()) {
+      if (!k.dead)
+        live.add(k.digest);
+    }
+    return live.toArray(new BailiffDigest[live.size()]);
+  }
+
+  /**
+   * Returns the number of live Bailiffs in the view, this one included.
+   */
+  public int size() {
+    int n = 0;
+    for (Known k : view.values()) {
+      if (!k.dead)
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Stops gossiping. The view is kept.
+   */
+  public void shutdown() {
+    rounds.cancel(false);
+  }
+
+  /**
+   * Keeps the digest if it is newer than the one known.
+   */
+  private void offer(BailiffDigest d) {
+    if (d == null || d.getName() == null)
+      return;
+    final Known fresh = new Known(d, System.currentTimeMillis(), false);
+    view.merge(d.getName(), fresh, (old, neu) ->
+        old.digest.getVersion() < neu.digest.getVersion() ? neu : old);
+  }
+
+  /**
+   * Marks the Bailiffs that have not advanced for the expiry time as
+   * dead, and forgets those that have been dead as long again, in the
+   * view and in BailiffHealth.
+   */
+  private void expire(long now) {
+    for (Known k : view.values()) {
+      String name = k.digest.getName();
+      if (name.equals(self))
+        continue;
+      if (k.dead) {
+        if (2 * expiryMs <= now - k.seenAtMs && view.remove(name, k))
+          BailiffHealth.shared().forget(name);
+      } else if (expiryMs <= now - k.seenAtMs) {
+        view.replace(name, k, new Known(k.digest, k.seenAtMs, true));
+      }
+    }
+  }
+
+  /**
+   * Renews this Bailiff's digest and exchanges views with up to fanout
+   * random peers, skipping those that BailiffHealth reports down. The
+   * outcome of every exchange is reported to BailiffHealth, so gossip
+   * keeps the failure detector fed between agent migrations.
+   */
+  private void round() {
+    try {
+      offer(heartbeat.apply(++beats));
+      expire(System.currentTimeMillis());
+
+      BailiffHealth health = BailiffHealth.shared();
+      List<String> peers = new ArrayList<>(Arrays.asList(
+          BailiffDirectory.shared().list()));
+      peers.remove(self);
+      peers.removeIf(name -> !health.allow(name));
+      Collections.shuffle(peers, ThreadLocalRandom.current());
+
+      BailiffDigest[] mine = getView();
+      for (String name : peers.subList(0, Math.min(fanout, peers.size()))) {
+        try {
+          BailiffDigest[] theirs =
+              BailiffDirectory.shared().lookup(name).gossip(mine);
+          health.success(name);
+          if (theirs != null) {
+            for (BailiffDigest d : theirs)
+              offer(d);
+          }
+        } catch (RemoteException e) {
+          health.failure(name);
+          BailiffDirectory.shared().invalidate(name);
+        } catch (Exception e) {
+          BailiffDirectory.shared().invalidate(name);
+        }
+      }
+    } catch (RemoteException e) {
+      // The rmiregistry is not reachable; keep the view until it is
+    } catch (RuntimeException e) {
+      // Keep gossiping in the next round
+    }
+  }
+}
@@ -0,0 +1,285 @@
+// BailiffHealth.java
+
+import java.rmi.NotBoundException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BailiffHealth tracks the health of the Bailiffs that agents in this
+ * JVM call, by service name. Agents and Bailiffs report the outcome of
+ * their calls, and ask before calling whether a Bailiff is worth the
+ * attempt. All agents in the JVM share one tracker, so a Bailiff found
+ * dead by one agent is avoided by all of them at once, without each
+ * waiting out its own TCP and RMI timeouts.
+ *
+ * Every Bailiff has a circuit breaker:
+ *
+ * CLOSED     Calls are allowed. The breaker opens after a number of
+ *            consecutive failures, or on a single failure when the
+ *            Bailiff has been silent for much longer than usual.
+ *
+ * OPEN       Calls are refused at once. When the open period has
+ *            passed, a background probe pings the Bailiff.
+ *
+ * HALF_OPEN  The probe is running and calls are still refused. If the
+ *            ping succeeds the breaker closes; if it fails the breaker
+ *            opens again for twice as long, up to a limit.
+ *
+ * A Bailiff whose name is no longer bound in the rmiregistry is
+ * forgotten by the probe. A Bailiff that no agent has asked about or
+ * called for the idle time is forgotten as well, and so is one whose
+ * gossip tombstone has expired, so the tracker holds only the Bailiffs
+ * still in use. A restarted Bailiff registers a new name and starts
+ * with a closed breaker.
+ *
+ * How unusual a silence is follows the accrual failure detector: the
+ * mean interval between successful calls is tracked, and phi is
+ * -log10 of the probability that the next success is still to come
+ * after the silence so far, assuming exponential intervals.
+ *
+ * The phi threshold, the number of failures and the first open period
+ * are read from the system properties tag.health.phi (8),
+ * tag.health.failures (3) and tag.health.open (1000 ms). Open periods
+ * grow to at most 30 times the first one. The idle time is read from
+ * tag.health.idle (300000 ms).
+ */
+public class BailiffHealth {
+
+  private static final BailiffHealth shared = new BailiffHealth(
+      Double.parseDouble(System.getProperty("tag.health.phi", "8")),
+      Integer.getInteger("tag.health.failures", 3),
+      Long.getLong("tag.health.open", 1000L),
+      Long.getLong("tag.health.idle", 300000L));
+
+  /**
+   * Returns the tracker shared by all agents in this JVM.
+   */
+  public static BailiffHealth shared() {
+    return shared;
+  }
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private static final double LOG10_E = Math.log10(Math.E);
+
+  // The shortest mean interval between successes that is assumed, so
+  // that a burst of calls does not make a short pause look suspect
+  private static final double MIN_INTERVAL_MS = 100;
+
+  private final double phiThreshold;
+  private final int maxFailures;
+  private final long openMs;
+  private final long maxOpenMs;
+  private final long idleMs;
+
+  private final ConcurrentHashMap<String, Endpoint> endpoints =
+      new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService prober =
+      Executors.newScheduledThreadPool(2, AgentEngine.daemonThreads("health"));
+
+  /**
+   * Creates a tracker.
+   *
+   * @param phiThreshold The phi above which a single failure opens the
+   *                     breaker.
+   * @param maxFailures  The number of consecutive failures that opens
+   *                     the breaker.
+   * @param openMs       The first open period, in milliseconds.
+   * @param idleMs       How long a Bailiff is remembered after the last
+   *                     call or question about it, in milliseconds.
+   */
+  public BailiffHealth(double phiThreshold, int maxFailures, long openMs,
+      long idleMs) {
+    this.phiThreshold = phiThreshold;
+    this.maxFailures = Math.max(1, maxFailures);
+    this.openMs = Math.max(10, openMs);
+    this.maxOpenMs = 30 * this.openMs;
+    this.idleMs = Math.max(this.maxOpenMs, idleMs);
+    long period = Math.max(10, this.openMs / 4);
+    prober.scheduleWithFixedDelay(this::sweep, period, period,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns true if calls to the named Bailiff are allowed: its breaker
+   * is closed, or nothing is known about it.
+   */
+  public boolean allow(String name) {
+    Endpoint e = endpoints.get(name);
+    if (e == null)
+      return true;
+    e.usedAtMs = System.currentTimeMillis();
+    return e.state == State.CLOSED;
+  }
+
+  /**
+   * Records a successful call to the named Bailiff. An overloaded
+   * Bailiff that refused an agent also counts as a success.
+   */
+  public void success(String name) {
+    endpoint(name).success(System.currentTimeMillis());
+  }
+
+  /**
+   * Records a call to the named Bailiff that failed in the transport.
+   */
+  public void failure(String name) {
+    endpoint(name).failure(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the state of the breaker of the named Bailiff.
+   */
+  public State getState(String name) {
+    Endpoint e = endpoints.get(name);
+    return (e != null) ? e.state : State.CLOSED;
+  }
+
+  /**
+   * Returns the suspicion level of the named Bailiff: 0 if it has never
+   * answered, and growing with the time since its last success.
+   */
+  public double getPhi(String name) {
+    Endpoint e = endpoints.get(name);
+    return (e != null) ? e.phi(System.currentTimeMillis()) : 0;
+  }
+
+  /**
+   * Returns the number of Bailiffs whose breaker is not closed.
+   */
+  public int getOpen() {
+    int n = 0;
+    for (Endpoint e : endpoints.values()) {
+      if (e.state != State.CLOSED)
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Forgets everything about the named Bailiff.
+   */
+  public void forget(String name) {
+    endpoints.remove(name);
+  }
+
+  public String toString() {
+    return String.format("BailiffHealth(endpoints=%d open=%d)",
+        endpoints.size(), getOpen());
+  }
+
+  private Endpoint endpoint(String name) {
+    Endpoint e = endpoints.get(name);
+    if (e == null) {
+      e = new Endpoint(name);
+      Endpoint prev = endpoints.putIfAbsent(name, e);
+      if (prev != null)
+        e = prev;
+    }
+    e.usedAtMs = System.currentTimeMillis();
+    return e;
+  }
+
+  /* ================ P r o b e s ================ */
+
+  /**
+   * Forgets the Bailiffs that have been idle for the idle time, and
+   * starts a probe of every other Bailiff whose open period has passed.
+   */
+  private void sweep() {
+    long now = System.currentTimeMillis();
+    for (final Endpoint e : endpoints.values()) {
+      if (idleMs <= now - e.usedAtMs)
+        endpoints.remove(e.name, e);
+      else if (e.halfOpen(now))
+        prober.execute(() -> probe(e));
+    }
+  }
+
+  /**
+   * Pings a Bailiff through a fresh stub from the rmiregistry.
+   */
+  private void probe(Endpoint e) {
+    BailiffDirectory directory = BailiffDirectory.shared();
+    try {
+      directory.invalidate(e.name);
+      directory.lookup(e.name).ping();
+      e.success(System.currentTimeMillis());
+    } catch (NotBoundException gone) {
+      endpoints.remove(e.name, e);
+    } catch (Exception failed) {
+      e.reopen(System.currentTimeMillis());
+    }
+  }
+
+  /* ================ E n d p o i n t ================ */
+
+  /**
+   * The breaker and the detector of one Bailiff.
+   */
+  private final class Endpoint {
+    final String name;
+    volatile State state = State.CLOSED;
+    volatile long usedAtMs = System.currentTimeMillis(); // not by probes
+
+    private long lastSuccessMs = 0; // 0 if never
+    private double meanIntervalMs = 1000;
+    private int failures = 0;
+    private long openForMs = openMs;
+    private long openUntilMs = 0;
+
+    Endpoint(String name) {
+      this.name = name;
+    }
+
+    synchronized void success(long now) {
+      if (lastSuccessMs != 0)
+        meanIntervalMs += 0.1 * ((now - lastSuccessMs) - meanIntervalMs);
+      lastSuccessMs = now;
+      failures = 0;
+      openForMs = openMs;
+      state = State.CLOSED;
+    }
+
+    synchronized void failure(long now) {
+      failures++;
+      if (state == State.CLOSED
+          && (maxFailures <= failures || phiThreshold <= phi(now)))
+        open(now);
+    }
+
+    synchronized double phi(long now) {
+      if (lastSuccessMs == 0)
+        return 0;
+      return (now - lastSuccessMs) / Math.max(MIN_INTERVAL_MS, meanIntervalMs)
+          * LOG10_E;
+    }
+
+    /**
+     * Moves from OPEN to HALF_OPEN if the open period has passed.
+     *
+     * @return True if the caller should probe.
+     */
+    synchronized boolean halfOpen(long now) {
+      if (state != State.OPEN || now < openUntilMs)
+        return false;
+      state = State.HALF_OPEN;
+      return true;
+    }
+
+    synchronized void reopen(long now) {
+      openForMs = Math.min(2 * openForMs, maxOpenMs);
+      open(now);
+    }
+
+    private void open(long now) {
+      state = State.OPEN;
+      openUntilMs = now + openForMs;
+    }
+  }
+}
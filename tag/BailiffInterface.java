@@ -58,11 +58,42 @@ public interface BailiffInterface
      *                                            wrong,
      *                                            the number of arguments is wrong
      *                                            or are of the wrong type).
+     * @exception BailiffOverloadedException      Thrown if the Bailiff is
+     *                                            saturated and refuses the
+     *                                            object; try another Bailiff,
+     *                                            or this one again later.
      * 
      */
     public void migrate(Object obj, String cb, Object[] args)
             throws java.rmi.RemoteException,
-            java.lang.NoSuchMethodException;
+            java.lang.NoSuchMethodException,
+            BailiffOverloadedException;
+
+    /**
+     * The entry point for a batch of mobile code, as many calls of
+     * migrate in one. The batch is sent in one stream, so the class
+     * descriptors and stubs shared by its agents are sent once.
+     *
+     * If atomic is true, either all agents are accepted or none is, and
+     * the refusal is thrown as migrate would throw it. Otherwise every
+     * agent is accepted or refused on its own, and the result for each
+     * tells which.
+     *
+     * @param batch  The agents, with their entry methods and arguments.
+     * @param atomic True to accept all agents or none.
+     * @return The result for every agent, in the order of the batch.
+     * @exception java.rmi.RemoteException        Thrown if there is an RMI problem.
+     * @exception java.lang.NoSuchMethodException Thrown if atomic is true and
+     *                                            the entry method of an agent
+     *                                            is not found.
+     * @exception BailiffOverloadedException      Thrown if atomic is true and
+     *                                            the Bailiff can not take all
+     *                                            agents of the batch.
+     */
+    public MigrationResult[] migrateBatch(MigrationRequest[] batch, boolean atomic)
+            throws java.rmi.RemoteException,
+            java.lang.NoSuchMethodException,
+            BailiffOverloadedException;
 
     // =============== New Methods
     // ==========================================================
@@ -71,10 +102,58 @@ public interface BailiffInterface
     public boolean tagPlayer(UUID uuid)
             throws java.rmi.RemoteException;
 
-    /** Return players' Map */
+    /**
+     * Pass the tag from the calling player, which must be 'it' and
+     * resident in this Bailiff, to an eligible player in the same
+     * Bailiff. Returns the player that was tagged, or null.
+     */
+    public PlayerSummary tagNearbyPlayer(UUID tagger)
+            throws java.rmi.RemoteException;
+
+    /**
+     * Return players' Map. Every player is serialized in full; prefer
+     * getRoster, or getRosterPage for large rosters.
+     */
     public java.util.Map<UUID, PlayerInterface> getPlayers()
             throws java.rmi.RemoteException;
 
+    /** Return a compact summary of each player */
+    public PlayerSummary[] getRoster()
+            throws java.rmi.RemoteException;
+
+    /**
+     * Return one page of the roster: the next players, in order of
+     * arrival, that pass the filter of the query, and the query for the
+     * page after them. Pass a new RosterQuery for the first page. The
+     * Bailiff keeps no state between pages, and neither side holds more
+     * than a page at a time, however many players are resident.
+     */
+    public RosterPage getRosterPage(RosterQuery query)
+            throws java.rmi.RemoteException;
+
+    /**
+     * Return the roster changes made after the given version. Pass 0
+     * in the first call, and the returned toVersion in the next. If the
+     * Bailiff no longer remembers the requested version, the result is
+     * a snapshot of the full roster.
+     */
+    public RosterDelta getRosterSince(long version)
+            throws java.rmi.RemoteException;
+
+    /**
+     * Subscribe a remote listener to the arrivals, departures and tag
+     * changes in this Bailiff. Returns false if it already was.
+     */
+    public boolean subscribe(BailiffListener listener)
+            throws java.rmi.RemoteException;
+
+    /**
+     * Unsubscribe a remote listener. Returns false if it was not
+     * subscribed.
+     */
+    public boolean unsubscribe(BailiffListener listener)
+            throws java.rmi.RemoteException;
+
     /** Return players' names */
     public java.util.Map<UUID, String> getPlayersNames()
             throws java.rmi.RemoteException;
@@ -86,4 +165,20 @@ public interface BailiffInterface
     /** Return the tagged players */
     public java.util.Map<UUID, Boolean> getTaggedPlayers()
             throws java.rmi.RemoteException;
+
+    /**
+     * Exchange heartbeats: merge the digests of the calling Bailiff's
+     * view of the mesh into this Bailiff's view, and return this
+     * Bailiff's view. Called by Bailiffs on each other.
+     */
+    public BailiffDigest[] gossip(BailiffDigest[] digests)
+            throws java.rmi.RemoteException;
+
+    /**
+     * Return this Bailiff's view of the mesh: the latest digest of every
+     * live Bailiff it has heard of, itself included. The view is kept
+     * up to date by gossip, so the call does not reach other Bailiffs.
+     */
+    public BailiffDigest[] getGlobalView()
+            throws java.rmi.RemoteException;
 }
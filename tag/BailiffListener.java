@@ -0,0 +1,27 @@
+// BailiffListener.java
+
+/**
+ * This interface is for clients that want to be told about changes to
+ * the roster of a Bailiff, instead of polling for them. A listener is
+ * an exported remote object that the client passes to
+ * BailiffInterface.subscribe.
+ */
+public interface BailiffListener
+        extends
+        java.rmi.Remote {
+    /**
+     * Called by a Bailiff with one or more roster changes, in version
+     * order. Changes are delivered asynchronously and may be coalesced
+     * into batches. If the listener falls behind, the oldest undelivered
+     * changes are dropped, which shows as a gap in the versions; the
+     * listener can then catch up with getRosterSince.
+     *
+     * @param source  The registry name of the Bailiff.
+     * @param changes The changes, oldest first.
+     * @exception java.rmi.RemoteException Thrown if there is an RMI problem.
+     *                                     A listener that keeps failing is
+     *                                     unsubscribed.
+     */
+    public void rosterChanged(String source, RosterChange[] changes)
+            throws java.rmi.RemoteException;
+}
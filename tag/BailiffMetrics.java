@@ -0,0 +1,457 @@
+// BailiffMetrics.java
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * BailiffMetrics counts what a Bailiff does: agents accepted and
+ * refused, the latency of every remote operation, and the size of the
+ * agent states it receives. It also reads the gauges of the engine,
+ * the registry, the admission queue, the spill file, the step
+ * scheduler and the gossip view, and the roster changes the event
+ * dispatcher dropped for slow subscribers.
+ *
+ * The metrics are published as a JMX MBean named
+ * tag:type=Bailiff,name=<id>, and optionally as Prometheus text on
+ * http://127.0.0.1:<port>/metrics. The Prometheus text also has the
+ * socket counters of the TunedSocketFactory and the agent state sizes
+ * of the AgentCodec. Those are per JVM, not per Bailiff, so they carry
+ * no bailiff label and only one Bailiff in the JVM exports them: the
+ * first to serve HTTP, or another once it has shut down. Several rooms
+ * in one JVM thus do not count them once each. Requests are served by
+ * two threads of their own, so a slow scrape does not hold up the
+ * ticker that computes the rates.
+ *
+ * Recording is lock-free and does not allocate: counters are
+ * LongAdders and latencies go into Histograms.
+ */
+public class BailiffMetrics implements BailiffMetricsMBean {
+
+  /**
+   * The remote operations whose latency is recorded.
+   */
+  public enum Op {
+    MIGRATE("migrate"),
+    MIGRATE_BATCH("migrateBatch"),
+    TAG_PLAYER("tagPlayer"),
+    TAG_NEARBY_PLAYER("tagNearbyPlayer"),
+    GET_PLAYERS("getPlayers"),
+    GET_ROSTER("getRoster"),
+    GET_ROSTER_SINCE("getRosterSince"),
+    GET_ROSTER_PAGE("getRosterPage"),
+    GET_PLAYERS_NAMES("getPlayersNames"),
+    GET_NUMBER_OF_PLAYERS("getNumberOfPlayers"),
+    GET_TAGGED_PLAYERS("getTaggedPlayers"),
+    GOSSIP("gossip"),
+    GET_GLOBAL_VIEW("getGlobalView");
+
+    final String label;
+
+    Op(String label) {
+      this.label = label;
+    }
+  }
+
+  private final String id;
+  private final AgentEngine engine;
+  private final PlayerRegistry players;
+  private final Collection<?> admissions;
+  private volatile SpillStore spill = null;
+  private volatile StepScheduler stepper = null;
+  private volatile BailiffGossip gossip = null;
+  private volatile EventDispatcher events = null;
+
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final Histogram[] latencies = new Histogram[Op.values().length];
+
+  // Counts at the previous tick and the rates derived from them
+  private volatile long acceptedRate = 0;
+  private volatile long rejectedRate = 0;
+  private long acceptedAtTick = 0;
+  private long rejectedAtTick = 0;
+
+  // The metrics that export the per-JVM series, if any
+  private static final AtomicReference<BailiffMetrics> jvmExporter =
+      new AtomicReference<>();
+
+  private final ScheduledExecutorService ticker;
+  private ObjectName objectName = null;
+  private volatile HttpServer http = null;
+  private ExecutorService httpWorkers = null;
+
+  /**
+   * Creates the metrics of a Bailiff.
+   *
+   * @param id         The id string of the Bailiff.
+   * @param engine     The Bailiff's agent engine.
+   * @param players    The Bailiff's player registry.
+   * @param admissions The Bailiff's admission queue.
+   */
+  public BailiffMetrics(String id, AgentEngine engine, PlayerRegistry players,
+      Collection<?> admissions) {
+    this.id = id;
+    this.engine = engine;
+    this.players = players;
+    this.admissions = admissions;
+
+    for (int i = 0; i < latencies.length; i++)
+      latencies[i] = new Histogram();
+
+    ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1,
+        AgentEngine.daemonThreads("metrics"));
+    stpe.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+    ticker = stpe;
+  }
+
+  /* ================ R e c o r d i n g ================ */
+
+  /**
+   * Records an accepted agent.
+   */
+  public void accepted() {
+    accepted.increment();
+  }
+
+  /**
+   * Records a refused agent.
+   */
+  public void rejected() {
+    rejected.increment();
+  }
+
+  /**
+   * Records the latency of a remote operation.
+   *
+   * @param op      The operation.
+   * @param startNs The value of System.nanoTime() when it started.
+   */
+  public void record(Op op, long startNs) {
+    latencies[op.ordinal()].record(System.nanoTime() - startNs);
+  }
+
+  /**
+   * Sets the spill file whose gauges are read, once the Bailiff starts
+   * passivating agents.
+   */
+  public void setSpillStore(SpillStore spill) {
+    this.spill = spill;
+  }
+
+  /**
+   * Sets the step scheduler whose gauges are read, once the Bailiff
+   * starts stepping agents.
+   */
+  public void setStepScheduler(StepScheduler stepper) {
+    this.stepper = stepper;
+  }
+
+  /**
+   * Sets the gossip whose view is counted.
+   */
+  public void setGossip(BailiffGossip gossip) {
+    this.gossip = gossip;
+  }
+
+  /**
+   * Sets the dispatcher whose dropped roster changes are counted.
+   */
+  public void setEventDispatcher(EventDispatcher events) {
+    this.events = events;
+  }
+
+  /**
+   * Returns the latency histogram of a remote operation. Its count is
+   * the number of calls of the operation.
+   */
+  public Histogram getLatency(Op op) {
+    return latencies[op.ordinal()];
+  }
+
+  /**
+   * Computes the per-second rates.
+   */
+  private void tick() {
+    long a = accepted.sum();
+    long r = rejected.sum();
+    acceptedRate = a - acceptedAtTick;
+    rejectedRate = r - rejectedAtTick;
+    acceptedAtTick = a;
+    rejectedAtTick = r;
+  }
+
+  /* ================ B a i l i f f M e t r i c s M B e a n ================ */
+
+  public long getMigrationsAccepted() {
+    return accepted.sum();
+  }
+
+  public long getMigrationsRejected() {
+    return rejected.sum();
+  }
+
+  public long getMigrationsAcceptedPerSecond() {
+    return acceptedRate;
+  }
+
+  public long getMigrationsRejectedPerSecond() {
+    return rejectedRate;
+  }
+
+  public int getActiveAgitators() {
+    return engine.getActiveAgents();
+  }
+
+  public int getQueuedAgents() {
+    return admissions.size() + engine.getQueueDepth();
+  }
+
+  public int getRosterSize() {
+    return players.size();
+  }
+
+  public int getPassivatedAgents() {
+    SpillStore s = spill;
+    return (s != null) ? s.getRecords() : 0;
+  }
+
+  public long getSpillUsedBytes() {
+    SpillStore s = spill;
+    return (s != null) ? s.getUsedBytes() : 0;
+  }
+
+  public int getSteppedAgents() {
+    StepScheduler s = stepper;
+    return (s != null) ? s.getAgents() : 0;
+  }
+
+  public int getMeshSize() {
+    BailiffGossip g = gossip;
+    return (g != null) ? g.size() : 0;
+  }
+
+  public long getRosterChangesDropped() {
+    EventDispatcher e = events;
+    return (e != null) ? e.getDropped() : 0;
+  }
+
+  public double getMeanPayloadBytes() {
+    return AgentCodec.receivedBytes.getMean();
+  }
+
+  public String[] getLatencies() {
+    Op[] ops = Op.values();
+    String[] lines = new String[ops.length];
+    for (Op op : ops) {
+      Histogram h = latencies[op.ordinal()];
+      lines[op.ordinal()] = String.format(Locale.ROOT,
+          "%s count=%d mean=%.1fus p50<%dus p99<%dus",
+          op.label, h.getCount(), h.getMean() / 1000.0,
+          h.getQuantile(0.50) / 1000 + 1, h.getQuantile(0.99) / 1000 + 1);
+    }
+    return lines;
+  }
+
+  /* ================ P u b l i s h i n g ================ */
+
+  /**
+   * Registers the metrics with the platform MBean server.
+   *
+   * @throws JMException Thrown if the registration fails.
+   */
+  public void registerMBean() throws JMException {
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+    objectName = new ObjectName("tag:type=Bailiff,name=" + ObjectName.quote(id));
+    mbs.registerMBean(this, objectName);
+  }
+
+  /**
+   * Serves the metrics as Prometheus text on the loopback interface,
+   * at /metrics, and the events in the shared EventRing at /trace.
+   *
+   * @param port The TCP port, or 0 for any free port.
+   * @return The port the server listens on.
+   * @throws IOException Thrown if the server can not be started.
+   */
+  public int startHttp(int port) throws IOException {
+    http = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    http.createContext("/metrics", new HttpHandler() {
+      public void handle(HttpExchange ex) throws IOException {
+        byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type",
+            "text/plain; version=0.0.4; charset=utf-8");
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+          os.write(body);
+        }
+      }
+    });
+    http.createContext("/trace", new HttpHandler() {
+      public void handle(HttpExchange ex) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(200, 0);
+        try (OutputStream os = ex.getResponseBody()) {
+          EventRing.shared().print(os);
+        }
+      }
+    });
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(2, 2, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        AgentEngine.daemonThreads("metrics-http"));
+    workers.allowCoreThreadTimeOut(true);
+    httpWorkers = workers;
+    http.setExecutor(workers);
+    http.start();
+    jvmExporter.compareAndSet(null, this);
+    return http.getAddress().getPort();
+  }
+
+  /**
+   * Stops the ticker and the HTTP server and unregisters the MBean.
+   */
+  public void shutdown() {
+    if (http != null) {
+      http.stop(0);
+      http = null;
+      httpWorkers.shutdown();
+    }
+    jvmExporter.compareAndSet(this, null);
+    ticker.shutdown();
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        // already gone
+      }
+    }
+  }
+
+  /**
+   * Returns the metrics in the Prometheus text exposition format.
+   */
+  public String toPrometheus() {
+    StringBuilder sb = new StringBuilder(4096);
+    String bailiff = "bailiff=\"" + id.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+
+    sb.append("# TYPE bailiff_migrations_total counter\n");
+    sb.append("bailiff_migrations_total{").append(bailiff)
+        .append(",result=\"accepted\"} ").append(accepted.sum()).append('\n');
+    sb.append("bailiff_migrations_total{").append(bailiff)
+        .append(",result=\"rejected\"} ").append(rejected.sum()).append('\n');
+
+    sb.append("# TYPE bailiff_roster_changes_dropped_total counter\n");
+    sb.append("bailiff_roster_changes_dropped_total{").append(bailiff).append("} ")
+        .append(getRosterChangesDropped()).append('\n');
+
+    gauge(sb, "bailiff_active_agitators", bailiff, getActiveAgitators());
+    gauge(sb, "bailiff_queued_agents", bailiff, getQueuedAgents());
+    gauge(sb, "bailiff_roster_size", bailiff, getRosterSize());
+    gauge(sb, "bailiff_passivated_agents", bailiff, getPassivatedAgents());
+    gauge(sb, "bailiff_spill_used_bytes", bailiff, getSpillUsedBytes());
+    gauge(sb, "bailiff_stepped_agents", bailiff, getSteppedAgents());
+    gauge(sb, "bailiff_mesh_size", bailiff, getMeshSize());
+
+    sb.append("# TYPE bailiff_call_duration_seconds histogram\n");
+    for (Op op : Op.values()) {
+      histogram(sb, "bailiff_call_duration_seconds",
+          bailiff + ",op=\"" + op.label + "\"", latencies[op.ordinal()], 1e-9);
+    }
+
+    // A Bailiff serving HTTP takes over when the exporter shuts down
+    if (http != null)
+      jvmExporter.compareAndSet(null, this);
+    if (jvmExporter.get() == this)
+      appendJvm(sb);
+
+    return sb.toString();
+  }
+
+  /**
+   * Appends the per-JVM series, without a bailiff label.
+   */
+  private static void appendJvm(StringBuilder sb) {
+    sb.append("# TYPE bailiff_agent_state_bytes histogram\n");
+    histogram(sb, "bailiff_agent_state_bytes", "", AgentCodec.receivedBytes, 1.0);
+
+    TunedSocketFactory.Stats sockets = TunedSocketFactory.stats();
+
+    sb.append("# TYPE bailiff_socket_bytes_total counter\n");
+    sb.append("bailiff_socket_bytes_total{direction=\"read\"} ")
+        .append(sockets.getBytesRead()).append('\n');
+    sb.append("bailiff_socket_bytes_total{direction=\"written\"} ")
+        .append(sockets.getBytesWritten()).append('\n');
+
+    sb.append("# TYPE bailiff_socket_connections_total counter\n");
+    sb.append("bailiff_socket_connections_total{side=\"client\"} ")
+        .append(sockets.getConnects()).append('\n');
+    sb.append("bailiff_socket_connections_total{side=\"server\"} ")
+        .append(sockets.getAccepts()).append('\n');
+
+    sb.append("# TYPE bailiff_socket_timeouts_total counter\n");
+    sb.append("bailiff_socket_timeouts_total ")
+        .append(sockets.getTimeouts()).append('\n');
+
+    sb.append("# TYPE bailiff_socket_connect_seconds histogram\n");
+    histogram(sb, "bailiff_socket_connect_seconds", "",
+        sockets.getConnectNanos(), 1e-9);
+
+    sb.append("# TYPE bailiff_socket_read_wait_seconds histogram\n");
+    histogram(sb, "bailiff_socket_read_wait_seconds", "",
+        sockets.getReadWaitNanos(), 1e-9);
+  }
+
+  private static void gauge(StringBuilder sb, String name, String labels,
+      long value) {
+    sb.append("# TYPE ").append(name).append(" gauge\n");
+    sb.append(name).append('{').append(labels).append("} ")
+        .append(value).append('\n');
+  }
+
+  private static void histogram(StringBuilder sb, String name, String labels,
+      Histogram h, double scale) {
+    String le = labels.isEmpty() ? "le=\"" : labels + ",le=\"";
+    String braced = labels.isEmpty() ? " " : "{" + labels + "} ";
+    int last = 0;
+    for (int i = 0; i < Histogram.BUCKETS; i++) {
+      if (h.getBucket(i) != 0)
+        last = i;
+    }
+    long cumulative = 0;
+    for (int i = 0; i <= last; i++) {
+      cumulative += h.getBucket(i);
+      sb.append(name).append("_bucket{").append(le)
+          .append(String.format(Locale.ROOT, "%.9g",
+              (Histogram.upperBound(i) - 1) * scale))
+          .append("\"} ").append(cumulative).append('\n');
+    }
+    sb.append(name).append("_bucket{").append(le).append("+Inf\"} ")
+        .append(h.getCount()).append('\n');
+    sb.append(name).append("_sum").append(braced)
+        .append(String.format(Locale.ROOT, "%.9g", h.getSum() * scale))
+        .append('\n');
+    sb.append(name).append("_count").append(braced)
+        .append(h.getCount()).append('\n');
+  }
+}
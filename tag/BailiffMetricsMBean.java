@@ -0,0 +1,59 @@
+// BailiffMetricsMBean.java
+
+/**
+ * The JMX management interface of BailiffMetrics. Latencies are in
+ * microseconds; rates are per second, measured over the last second.
+ */
+public interface BailiffMetricsMBean {
+
+    /** Return the number of agents accepted since start */
+    public long getMigrationsAccepted();
+
+    /** Return the number of agents refused since start */
+    public long getMigrationsRejected();
+
+    /** Return the number of agents accepted in the last second */
+    public long getMigrationsAcceptedPerSecond();
+
+    /** Return the number of agents refused in the last second */
+    public long getMigrationsRejectedPerSecond();
+
+    /** Return the number of Agitators executing their entry method */
+    public int getActiveAgitators();
+
+    /** Return the number of agents waiting to be started */
+    public int getQueuedAgents();
+
+    /** Return the number of resident players */
+    public int getRosterSize();
+
+    /** Return the number of agents passivated in the spill file */
+    public int getPassivatedAgents();
+
+    /** Return the bytes of the spill file holding agents */
+    public long getSpillUsedBytes();
+
+    /** Return the number of agents run by the step scheduler */
+    public int getSteppedAgents();
+
+    /** Return the number of live Bailiffs in the gossip view */
+    public int getMeshSize();
+
+    /**
+     * Return the number of roster changes dropped because a subscriber's
+     * queue was full
+     */
+    public long getRosterChangesDropped();
+
+    /**
+     * Return the mean size of the agent states received by all Bailiffs
+     * in this JVM, in bytes
+     */
+    public double getMeanPayloadBytes();
+
+    /**
+     * Return one line per remote operation with its call count and
+     * mean, median and 99th percentile latency.
+     */
+    public String[] getLatencies();
+}
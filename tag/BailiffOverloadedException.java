@@ -0,0 +1,35 @@
+// BailiffOverloadedException.java
+
+/**
+ * Thrown by a Bailiff that refuses to accept an agent because it
+ * already hosts as many agents as it is configured to, or because its
+ * admission queue is full. The agent has not been accepted and is
+ * still the caller's; it should try another Bailiff, or this one again
+ * after the suggested delay.
+ */
+public class BailiffOverloadedException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long retryAfterMs;
+
+  /**
+   * Creates a new exception.
+   *
+   * @param message      The reason for the refusal.
+   * @param retryAfterMs The suggested delay before trying this Bailiff
+   *                     again, in milliseconds.
+   */
+  public BailiffOverloadedException(String message, long retryAfterMs) {
+    super(message);
+    this.retryAfterMs = retryAfterMs;
+  }
+
+  /**
+   * Returns the suggested delay before trying the Bailiff again, in
+   * milliseconds.
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMs;
+  }
+}
@@ -0,0 +1,262 @@
+// BailiffRuntime.java
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A BailiffRuntime hosts many Bailiffs, the rooms of a playfield, in
+ * one JVM. Every room has its own id, roster, metrics and rmiregistry
+ * binding, as a Bailiff in a JVM of its own would have, but the rooms
+ * share:
+ *
+ *   the AgentEngine that lends threads of execution to their agents,
+ *
+ *   the EntryPointCache, so an agent class is resolved once for all
+ *   rooms, and
+ *
+ *   the RMI endpoint: all rooms are exported on the same port with the
+ *   same socket factory, so RMI serves them on one server socket and
+ *   clients reuse their connections for all of them.
+ *
+ * The rooms are bound locally in the shared BailiffDirectory, so agents
+ * in this JVM call them directly. An agent that migrates from one room
+ * to another moves between the rosters as the same object, without
+ * serialization or network I/O; see Bailiff.migrate. Agents in other
+ * JVMs reach the rooms through the rmiregistry as before.
+ *
+ *   > java BailiffRuntime -rooms 20 -id hall
+ */
+public class BailiffRuntime {
+
+  private final Logger log;
+  private final AgentEngine engine;
+  private final EntryPointCache entryPoints = new EntryPointCache();
+  private final int port;
+  private final TunedSocketFactory sockets;
+
+  // The rooms by id, in the order they were added
+  private final Map<String, Bailiff> rooms = new LinkedHashMap<>(); // guarded by this
+
+  /**
+   * Creates a runtime without rooms.
+   *
+   * @param log     The Logger shared by the rooms.
+   * @param engine  The engine that lends threads to the agents of all
+   *                rooms.
+   * @param port    The TCP port all rooms are exported on, 0 for an
+   *                anonymous port.
+   * @param sockets The factory of the sockets carrying calls to the
+   *                rooms, or null for the default RMI socket factories.
+   */
+  public BailiffRuntime(Logger log, AgentEngine engine, int port,
+      TunedSocketFactory sockets) {
+    if (log == null)
+      throw new IllegalArgumentException("Logger is null");
+    if (engine == null)
+      throw new IllegalArgumentException("AgentEngine is null");
+    this.log = log;
+    this.engine = engine;
+    this.port = port;
+    this.sockets = sockets;
+  }
+
+  /**
+   * Creates a room, binds it in the rmiregistry and locally in the
+   * shared BailiffDirectory.
+   *
+   * @param id   The identification string of the room.
+   * @param info The information string of the room.
+   * @return The Bailiff of the room.
+   * @throws IllegalArgumentException Thrown if the runtime already has a
+   *                                  room with this id.
+   * @throws IOException              Thrown if the room can not be
+   *                                  exported or bound.
+   */
+  public synchronized Bailiff addRoom(String id, String info)
+      throws IOException {
+    if (id == null || rooms.containsKey(id))
+      throw new IllegalArgumentException("Room id missing or taken: " + id);
+    Bailiff room = new Bailiff(id, info, log, engine, port, sockets, entryPoints);
+    rooms.put(id, room);
+    BailiffDirectory.shared().bindLocal(room.serviceName, room);
+    return room;
+  }
+
+  /**
+   * Unbinds and closes a room, see Bailiff.close. Agents still running
+   * in it finish on the shared engine.
+   *
+   * @return False if there is no room with this id.
+   */
+  public synchronized boolean removeRoom(String id) {
+    Bailiff room = rooms.remove(id);
+    if (room == null)
+      return false;
+    BailiffDirectory.shared().unbindLocal(room.serviceName);
+    room.close();
+    return true;
+  }
+
+  /**
+   * Returns the room with the given id, or null.
+   */
+  public synchronized Bailiff getRoom(String id) {
+    return rooms.get(id);
+  }
+
+  /**
+   * Returns the rooms, in the order they were added.
+   */
+  public synchronized List<Bailiff> getRooms() {
+    return new ArrayList<>(rooms.values());
+  }
+
+  public AgentEngine getEngine() {
+    return engine;
+  }
+
+  public EntryPointCache getEntryPoints() {
+    return entryPoints;
+  }
+
+  public synchronized String toString() {
+    return String.format("BailiffRuntime(rooms=%d engine=%s port=%d)",
+        rooms.size(), engine.getName(), port);
+  }
+
+  /* ================ m a i n ================ */
+
+  private static void showUsage() {
+    String[] msg = {
+        "Usage: {'?',-h,-help}|[-rooms n][-id prefix][-info string][-log n]"
+            + "[-engine name][-threads n][-max n][-port n]",
+        "? -h help     This message",
+        "-rooms n      Sets the number of rooms (4)",
+        "-id prefix    Sets the prefix of the room ids, which are prefix-0,",
+        "              prefix-1 and so on (room)",
+        "-info string  Sets the information message of every room",
+        "-log  n       Sets the logging level, see Bailiff (3)",
+        "-engine name  Sets the agent engine shared by the rooms, see",
+        "              Bailiff (legacy)",
+        "-threads n    Sets the number of threads of the pool engine",
+        "-max  n       Sets the maximum number of resident agents per room",
+        "-port n       Sets the TCP port of the rooms (0, any free port)"
+    };
+    for (String s : msg)
+      System.out.println(s);
+  }
+
+  public static void main(String[] argv) throws IOException {
+    int roomCount = 4;
+    String prefix = "room";
+    String info = null;
+    Level logLevel = Level.INFO;
+    String engineName = "legacy";
+    int threads = 2 * Runtime.getRuntime().availableProcessors();
+    String maxAgents = null;
+    int port = 0;
+
+    int state = 0;
+
+    for (String av : argv) {
+
+      switch (state) {
+
+        case 0:
+          if (av.equals("?") || av.equals("-h") || av.equals("-help")) {
+            showUsage();
+            return;
+          } else if (av.equals("-rooms"))
+            state = 1;
+          else if (av.equals("-id"))
+            state = 2;
+          else if (av.equals("-info"))
+            state = 3;
+          else if (av.equals("-log"))
+            state = 4;
+          else if (av.equals("-engine"))
+            state = 5;
+          else if (av.equals("-threads"))
+            state = 6;
+          else if (av.equals("-max"))
+            state = 7;
+          else if (av.equals("-port"))
+            state = 8;
+          else {
+            System.err.println("Unknown commandline argument: " + av);
+            return;
+          }
+          break;
+
+        case 1:
+          roomCount = Math.max(1, Integer.parseInt(av));
+          state = 0;
+          break;
+
+        case 2:
+          prefix = av;
+          state = 0;
+          break;
+
+        case 3:
+          info = av;
+          state = 0;
+          break;
+
+        case 4:
+          logLevel = Bailiff.setLoglevelFromCmdLine(av);
+          state = 0;
+          break;
+
+        case 5:
+          engineName = av;
+          state = 0;
+          break;
+
+        case 6:
+          threads = Integer.parseInt(av);
+          state = 0;
+          break;
+
+        case 7:
+          maxAgents = av;
+          state = 0;
+          break;
+
+        case 8:
+          port = Integer.parseInt(av);
+          state = 0;
+          break;
+      } // switch
+    } // for
+
+    Logger log = Logger.getAnonymousLogger();
+    log.setLevel(logLevel);
+
+    AgentEngine engine;
+
+    try {
+      engine = AgentEngine.create(engineName, threads);
+    } catch (IllegalArgumentException | UnsupportedOperationException e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+
+    BailiffRuntime runtime = new BailiffRuntime(log, engine, port,
+        new TunedSocketFactory(5000, 10000, true, true, 0));
+
+    for (int i = 0; i < roomCount; i++) {
+      Bailiff room = runtime.addRoom(prefix + "-" + i, info);
+      if (maxAgents != null)
+        room.setProperty("maxagents", maxAgents);
+    }
+
+    log.info(runtime.toString());
+  } // main
+
+} // class BailiffRuntime
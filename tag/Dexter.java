@@ -2,12 +2,14 @@
 // 2024-01-25/fki Refactored for v14 - no Jini, only the rmiregistry
 // 2018-08-15/fki Refactored from v11
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 
 import java.util.ArrayList;
 
@@ -15,19 +17,17 @@ import java.util.ArrayList;
  * Dexter jumps around randomly among the Bailiffs. Dexter can be used
  * to test that the system is operating, and as a template for more
  * evolved agents. Since objects of class Dexter move between JVMs, it
- * must be implement the Serializable marker interface. Reference type
- * members that are not serializable should be declared as transient.
+ * must be serializable. Dexter implements Externalizable and writes
+ * its state through the compact, versioned AgentCodec format. Only the
+ * configuration and counters travel; the lists of Bailiff names are
+ * caches that are rebuilt from the BailiffDirectory after arrival.
+ * Subclasses that add state override writeState and readState.
  */
-public class Dexter implements Serializable {
+public class Dexter implements Externalizable, AgentCodec.State, SteppedAgent {
   /**
-   * List of viable Bailiff names
+   * List of viable Bailiff names. Not migrated.
    */
-  private ArrayList<String> goodNames = new ArrayList<>();
-
-  /**
-   * List of defunct Bailiff names
-   */
-  protected ArrayList<String> badNames = new ArrayList<>();
+  private transient ArrayList<String> goodNames = new ArrayList<>();
 
   /**
    * Identification string used in debug messages.
@@ -56,6 +56,16 @@ public class Dexter implements Serializable {
    */
   protected boolean debug = false;
 
+  /**
+   * Where the next step starts: arrival, a scan for Bailiffs, or an
+   * attempt to migrate. Not migrated; every arrival starts at ARRIVE.
+   */
+  protected transient int phase = ARRIVE;
+
+  protected static final int ARRIVE = 0;
+  protected static final int SCAN = 1;
+  protected static final int HOP = 2;
+
   /**
    * Sets the id string of this Dexter.
    * 
@@ -105,11 +115,70 @@ public class Dexter implements Serializable {
   }
 
   /**
-   * Creates a new Dexter.
+   * Records an event in the EventRing of the JVM Dexter is in. Unlike
+   * debugMsg, this formats nothing, so it is cheap enough to leave on.
+   * The actor is the hash of the id, which the Bailiffs also record for
+   * this player's departures and tags.
+   *
+   * @param type The event type.
+   * @param a    The first argument, as given by the type.
+   * @param b    The second argument, as given by the type.
+   */
+  protected void trace(EventRing.Type type, long a, long b) {
+    EventRing.shared().record(type, EventRing.hash(id), a, b);
+  }
+
+  /**
+   * Records a failure, by the class name of the exception.
+   */
+  protected void traceFailure(Throwable t) {
+    trace(EventRing.Type.FAILURE, EventRing.shared().name(t.getClass().getName()), 0);
+  }
+
+  /**
+   * Creates a new Dexter. Also used when a Dexter is deserialized.
    */
   public Dexter() {
   }
 
+  /**
+   * Writes this Dexter in the AgentCodec format.
+   */
+  public void writeExternal(ObjectOutput out) throws IOException {
+    AgentCodec.write(out, this);
+  }
+
+  /**
+   * Reads this Dexter from the AgentCodec format.
+   */
+  public void readExternal(ObjectInput in) throws IOException {
+    AgentCodec.read(in, this);
+  }
+
+  /**
+   * Writes the fields that migrate with Dexter.
+   */
+  public void writeState(DataOutput out) throws IOException {
+    out.writeUTF(id);
+    out.writeLong(restraintSleepMs);
+    out.writeLong(retrySleep);
+    out.writeInt(jumpCount);
+    out.writeBoolean(debug);
+  }
+
+  /**
+   * Reads the fields written by writeState.
+   *
+   * @param version The AgentCodec format version of the state.
+   */
+  public void readState(DataInput in, int version) throws IOException {
+    id = in.readUTF();
+    restraintSleepMs = in.readLong();
+    retrySleep = in.readLong();
+    jumpCount = in.readInt();
+    debug = in.readBoolean();
+  }
+
   /**
    * Sleep for the given number of milliseconds.
    * 
@@ -123,44 +192,48 @@ public class Dexter implements Serializable {
   }
 
   /**
-   * Scan for Baliff services.
+   * Scan for Baliff services. The names come from the directory shared
+   * by all agents in the JVM, which only asks the rmiregistry when its
+   * listing has expired.
    */
   protected void scanForBailiffs() {
 
     try {
 
-      // Get the default RMI registry
+      // Ask for all registered Bailiffs
 
-      Registry registry = LocateRegistry.getRegistry(null);
-
-      // Ask for all registered services
-
-      String[] serviceNames = registry.list();
+      String[] serviceNames = BailiffDirectory.shared().list();
+      BailiffHealth health = BailiffHealth.shared();
+      int shunned = 0;
 
       // Inspect the list of service names
 
       for (String name : serviceNames) {
 
-        if (name.startsWith("Bailiff")) {
-
-          // If the name already is on the bad list, ignore it
+        // If the Bailiff is known to be down in this JVM, ignore it
 
-          if (badNames.contains(name))
-            continue;
+        if (!health.allow(name)) {
+          goodNames.remove(name);
+          shunned++;
+          continue;
+        }
 
-          // If the name already is on the good list, ignore it
+        // If the name already is on the good list, ignore it
 
-          if (goodNames.contains(name))
-            continue;
+        if (goodNames.contains(name))
+          continue;
 
-          // Else, optimistically add it to the good names
+        // Else, optimistically add it to the good names
 
-          goodNames.add(name);
-        }
+        goodNames.add(name);
       }
 
+      trace(EventRing.Type.SCAN, goodNames.size(), shunned);
+
     } catch (Exception e) {
-      debugMsg("Scanning for Bailiffs failed: " + e.toString());
+      traceFailure(e);
+      if (debug)
+        debugMsg("Scanning for Bailiffs failed: " + e.toString());
     }
   }
 
@@ -177,127 +250,199 @@ public class Dexter implements Serializable {
    * while good Bailiffs are known
    * jump to a random Bailiff
    * or
-   * update the lists of good and bad bailiffs
+   * drop the Bailiff from the list of good bailiffs
    * }
    *
    * Dexter has no concept of where he is, and may happily migrate to
    * the Bailiff he is already in.
+   *
+   * The loop is written as the steps of a SteppedAgent, and topLevel
+   * runs them on the thread lent by the Bailiff. The sleeps between
+   * steps are taken with rest, so in a Bailiff that passivates agents
+   * Dexter holds no thread while he sleeps, and continues in method
+   * roam when he wakes up.
    */
   public void topLevel()
       throws java.io.IOException {
-    jumpCount++;
+    phase = ARRIVE;
+    drive();
+  }
 
-    // Loop forever until we have successfully jumped to a Bailiff.
+  /**
+   * Continues after a sleep, with a new scan for Bailiffs. This is
+   * where Dexter resumes after being passivated.
+   */
+  public void roam()
+      throws java.io.IOException {
+    phase = SCAN;
+    drive();
+  }
 
+  /**
+   * Runs the steps on the calling thread, resting between them, until
+   * Dexter has migrated or has been passivated.
+   */
+  protected void drive() {
     for (;;) {
+      long ms = step();
+      if (ms == DONE)
+        return;
+      if (0 < ms && rest(ms))
+        return; // passivated, the Bailiff calls roam later
+    }
+  }
 
-      long retryInterval = 0; // incremented when no Bailiffs are found
-
-      // Sleep a bit so that humans can keep up.
-
-      debugMsg("Is here - entering restraint sleep.");
-      snooze(restraintSleepMs);
-      debugMsg("Leaving restraint sleep.");
-
-      // Try to find Bailiffs.
-      // The loop keeps going until we get a non-empty list of good names.
-      // If no results are found, we sleep a bit between attempts.
-
-      do {
-
-        if (0 < retryInterval) {
-          debugMsg("No Bailiffs detected - sleeping.");
-          snooze(retryInterval);
-          debugMsg("Waking up, looking for Bailiffs.");
-        }
-
-        scanForBailiffs();
-
-        retryInterval = retrySleep;
-
-        // If no lookup servers or bailiffs are found, go back up to
-        // the beginning of the loop, sleep a bit, and then try again.
-
-      } while (goodNames.isEmpty());
-
-      // Now, at least one possibly good Bailiff has been found.
-
-      debugMsg("Found " + goodNames.size() + " Bailiffs");
-
-      // Enter a loop in which we:
-      // - randomly pick one Bailiff
-      // - migrate to it, or if that fail, try another one
+  /**
+   * Sleeps for the given number of milliseconds. If Dexter runs in a
+   * Bailiff that passivates agents, the Bailiff is asked to keep him in
+   * its spill file instead, and to call roam when the time is up.
+   *
+   * @param ms The number of milliseconds to sleep.
+   * @return True if Dexter was passivated and must return at once.
+   */
+  protected boolean rest(long ms) {
+    if (Bailiff.passivate(this, "roam", new Object[] {}, ms))
+      return true;
+    snooze(ms);
+    return false;
+  }
 
-      while (!goodNames.isEmpty()) {
+  /**
+   * Runs the next step of topLevel: arrive and take the restraint
+   * sleep, scan for Bailiffs, or try to migrate to one of them.
+   *
+   * @return The milliseconds until the next step, or DONE when Dexter
+   *         has migrated.
+   */
+  public long step() {
+    switch (phase) {
 
-        // Randomly pick one of the good names
+      case ARRIVE:
+        jumpCount++;
 
-        String name = goodNames.get((int) (goodNames.size() * Math.random()));
+        // Sleep a bit so that humans can keep up.
 
-        // Prepare some state flags
+        debugMsg("Is here - entering restraint sleep.");
+        phase = SCAN;
+        return restraintSleepMs;
 
-        boolean noRegistry = false;
-        boolean badName = false;
+      case SCAN:
+        debugMsg("Looking for Bailiffs.");
 
-        try {
+        // Try to find Bailiffs. If none are found, sleep a bit and try
+        // again.
 
-          // Obtain the default RMI registry
+        scanForBailiffs();
+        if (goodNames.isEmpty()) {
+          debugMsg("No Bailiffs detected - sleeping.");
+          return retrySleep;
+        }
 
-          Registry registry = LocateRegistry.getRegistry(null);
+        // Now, at least one possibly good Bailiff has been found.
 
-          try {
+        if (debug)
+          debugMsg("Found " + goodNames.size() + " Bailiffs");
+        phase = HOP;
+        return 0;
 
-            // Lookup the service name we selected
+      default:
+        return hop();
+    }
+  }
 
-            Remote service = registry.lookup(name);
+  /**
+   * Randomly picks one of the good Bailiffs and tries to migrate to
+   * it. If that fails, the Bailiff is dropped from the good ones and
+   * reported to BailiffHealth, and the next step tries another one.
+   */
+  private long hop() {
 
-            // Verify it is what we want
+    // Randomly pick one of the good names
 
-            if (service instanceof BailiffInterface) {
+    String name = goodNames.get((int) (goodNames.size() * Math.random()));
 
-              BailiffInterface bfi = (BailiffInterface) service;
+    // Another agent in this JVM may have found it down meanwhile
 
-              // Attempt to migrate
+    BailiffHealth health = BailiffHealth.shared();
+    if (!health.allow(name)) {
+      goodNames.remove(name);
+      return goodNames.isEmpty() ? allFailed() : 0;
+    }
 
-              try {
-                debugMsg("Trying to migrate");
+    // Prepare some state flags
 
-                bfi.migrate(this, "topLevel", new Object[] {});
+    boolean noRegistry = false;
+    boolean badName = false;
 
-                debugMsg("Has migrated");
+    BailiffDirectory directory = BailiffDirectory.shared();
 
-                return; // SUCCESS, we are done here
-              } catch (RemoteException rex) {
-                debugMsg(rex.toString());
-                badName = true;
-              }
-            } else
-              badName = true;
-          } catch (Exception e) {
-            badName = true;
-          }
-        } catch (Exception e) {
-          noRegistry = true;
-        }
+    try {
 
-        // If we come here the migrate failed. Check the state flags
-        // and take appropriate action.
+      // Lookup the service name we selected, through the directory
+
+      BailiffInterface bfi = directory.lookup(name);
+
+      // Attempt to migrate
+
+      try {
+        debugMsg("Trying to migrate");
+
+        trace(EventRing.Type.HOP, EventRing.hash(name), 0);
+        bfi.migrate(this, "topLevel", new Object[] {});
+        health.success(name);
+
+        debugMsg("Has migrated");
+
+        // A Bailiff in this JVM may have taken this very object, and
+        // then steps it again from the start
+        phase = ARRIVE;
+        return DONE; // SUCCESS, we are done here
+      } catch (BailiffOverloadedException e) {
+        // Not a bad Bailiff, just a full one: wait a little
+        health.success(name);
+        debugMsg(e.getMessage());
+        return Math.min(e.getRetryAfterMillis(), restraintSleepMs);
+      } catch (RemoteException rex) {
+        traceFailure(rex);
+        if (debug)
+          debugMsg(rex.toString());
+        health.failure(name);
+        badName = true;
+      } catch (Exception e) {
+        badName = true;
+      }
+    } catch (RemoteException e) {
+      noRegistry = true;
+    } catch (Exception e) {
+      badName = true;
+    }
 
-        if (noRegistry) {
-          debugMsg("No registry found - resetting name lists");
-          goodNames.clear();
-          badNames.clear();
-        } else if (badName) {
-          debugMsg(String.format("Bad service name found: %s", name));
-          goodNames.remove(name);
-          badNames.add(name);
-        }
+    // If we come here the migrate failed. Check the state flags
+    // and take appropriate action.
+
+    if (noRegistry) {
+      debugMsg("No registry found - resetting name list");
+      goodNames.clear();
+    } else if (badName) {
+      if (debug)
+        debugMsg(String.format("Bad service name found: %s", name));
+      directory.invalidate(name);
+      goodNames.remove(name);
+    }
 
-      } // while candidates remain
+    if (!goodNames.isEmpty())
+      return 0; // try another one
+    return allFailed();
+  } // hop
 
-      debugMsg("All Bailiffs failed.");
-    } // for ever
-  } // topLevel
+  /**
+   * Ends a round of migration attempts: sleep a bit, then scan again.
+   */
+  private long allFailed() {
+    debugMsg("All Bailiffs failed.");
+    phase = SCAN;
+    return restraintSleepMs;
+  }
 
   /**
    * Prints commandline help.
@@ -0,0 +1,242 @@
+// EntryPointCache.java
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The EntryPointCache resolves the entry (callback) method of an agent
+ * into a MethodHandle and remembers the result, so that agents of the
+ * same class arriving with the same callback name and argument types
+ * do not pay for a reflective lookup on every migration.
+ *
+ * The cache is attached to the agent classes through a ClassValue.
+ * When the classloader of an agent class becomes unreachable, the
+ * class and its cached entry points are collected with it.
+ *
+ * Arguments are matched against the parameters of public methods
+ * using assignment compatibility: an argument matches a parameter of
+ * a supertype, and boxed values match primitive parameters. If more
+ * than one method matches, the most specific one is chosen.
+ */
+public class EntryPointCache {
+
+  // The uniform type of all cached handles: (Object, Object[])Object
+  private static final MethodType INVOKER_TYPE =
+      MethodType.methodType(Object.class, Object.class, Object[].class);
+
+  // A lookup with the access of the Bailiff's package
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  // Per class, a map from callback signature to resolved handle.
+  private final ClassValue<ConcurrentMap<Signature, MethodHandle>> handles =
+      new ClassValue<ConcurrentMap<Signature, MethodHandle>>() {
+        protected ConcurrentMap<Signature, MethodHandle> computeValue(Class<?> c) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
+  /**
+   * Returns a handle to the public method cb of the given class that
+   * accepts the given arguments. The handle has the type
+   * (Object, Object[])Object: it takes the target object and the
+   * argument array, and returns null for void methods.
+   *
+   * @param c    The class of the agent object.
+   * @param cb   The name of the entry point method.
+   * @param args The arguments that will be passed to the method.
+   * @throws NoSuchMethodException Thrown if no public method named cb
+   *                               accepts the arguments.
+   */
+  public MethodHandle resolve(Class<?> c, String cb, Object[] args)
+      throws NoSuchMethodException {
+    ConcurrentMap<Signature, MethodHandle> map = handles.get(c);
+    Signature sig = new Signature(cb, args);
+    MethodHandle mh = map.get(sig);
+    if (mh == null) {
+      mh = toInvoker(findMethod(c, cb, sig.types));
+      MethodHandle prev = map.putIfAbsent(sig, mh);
+      if (prev != null)
+        mh = prev;
+    }
+    return mh;
+  }
+
+  /**
+   * Returns the number of signatures cached for the given class.
+   */
+  public int size(Class<?> c) {
+    return handles.get(c).size();
+  }
+
+  /**
+   * Drops all cached entry points of the given class.
+   */
+  public void invalidate(Class<?> c) {
+    handles.remove(c);
+  }
+
+  /**
+   * Converts a method into a handle of the uniform invoker type. The
+   * lookup has the Bailiff's own access, so a public method of an agent
+   * class that is not public is found as Method.invoke would find it;
+   * one in a class of another package is made accessible first.
+   */
+  private static MethodHandle toInvoker(Method m)
+      throws NoSuchMethodException {
+    MethodHandle mh;
+    try {
+      mh = LOOKUP.unreflect(m);
+    } catch (IllegalAccessException denied) {
+      try {
+        m.setAccessible(true);
+        mh = LOOKUP.unreflect(m);
+      } catch (IllegalAccessException | SecurityException e) {
+        throw new NoSuchMethodException(String.format("%s is not accessible: %s",
+            m, e.getMessage()));
+      }
+    }
+    return mh.asSpreader(Object[].class, m.getParameterCount())
+        .asType(INVOKER_TYPE);
+  }
+
+  /**
+   * Finds the most specific public method named cb whose parameters
+   * accept arguments of the given types. A null type stands for a null
+   * argument, which matches any reference parameter.
+   */
+  private static Method findMethod(Class<?> c, String cb, Class<?>[] types)
+      throws NoSuchMethodException {
+
+    // The common case is an exact match, which getMethod finds quickly.
+
+    boolean hasNull = false;
+    for (Class<?> t : types)
+      hasNull |= (t == null);
+
+    if (!hasNull) {
+      try {
+        Method m = c.getMethod(cb, types);
+        if (!Modifier.isStatic(m.getModifiers()))
+          return m;
+      } catch (NoSuchMethodException e) {
+        // fall through to the compatible match below
+      }
+    }
+
+    Method best = null;
+
+    for (Method m : c.getMethods()) {
+      if (!m.getName().equals(cb)
+          || Modifier.isStatic(m.getModifiers())
+          || m.getParameterCount() != types.length
+          || !accepts(m.getParameterTypes(), types))
+        continue;
+      if (best == null || moreSpecific(m.getParameterTypes(), best.getParameterTypes()))
+        best = m;
+    }
+
+    if (best == null)
+      throw new NoSuchMethodException(String.format("%s.%s%s",
+          c.getName(), cb, Arrays.toString(types)));
+
+    return best;
+  }
+
+  /**
+   * Returns true if arguments of the given runtime types can be passed
+   * to the given parameters. Runtime types are never primitive; a boxed
+   * argument matches its primitive parameter and any wider one.
+   */
+  private static boolean accepts(Class<?>[] params, Class<?>[] types) {
+    for (int i = 0; i < params.length; i++) {
+      Class<?> p = params[i];
+      Class<?> t = types[i];
+      if (p.isPrimitive()) {
+        Class<?> u = (t != null) ? unbox(t) : null;
+        if (u == null || !(u == p || widens(u, p)))
+          return false;
+      } else if (t != null && !p.isAssignableFrom(t)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if every parameter in a can be passed on to the
+   * corresponding parameter in b, that is, if a is at least as specific
+   * as b.
+   */
+  private static boolean moreSpecific(Class<?>[] a, Class<?>[] b) {
+    for (int i = 0; i < a.length; i++) {
+      if (a[i].isPrimitive() && b[i].isPrimitive()) {
+        if (a[i] != b[i] && !widens(a[i], b[i]))
+          return false;
+      } else if (!b[i].isAssignableFrom(a[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the primitive type from widens to the primitive
+   * type to, as in an assignment.
+   */
+  private static boolean widens(Class<?> from, Class<?> to) {
+    if (from == char.class)
+      return to == int.class || to == long.class
+          || to == float.class || to == double.class;
+    List<Class<?>> order = Arrays.<Class<?>>asList(byte.class, short.class,
+        int.class, long.class, float.class, double.class);
+    int f = order.indexOf(from);
+    int t = order.indexOf(to);
+    return 0 <= f && f < t;
+  }
+
+  /**
+   * Returns the primitive type of a wrapper class, or null.
+   */
+  private static Class<?> unbox(Class<?> c) {
+    Class<?> u = MethodType.methodType(c).unwrap().returnType();
+    return u.isPrimitive() ? u : null;
+  }
+
+  /* ================ S i g n a t u r e ================ */
+
+  /**
+   * The key of a cached entry point: the callback name and the runtime
+   * types of the arguments.
+   */
+  private static final class Signature {
+    final String name;
+    final Class<?>[] types;
+    final int hash;
+
+    Signature(String name, Object[] args) {
+      this.name = name;
+      this.types = new Class<?>[args.length];
+      for (int i = 0; i < args.length; i++)
+        types[i] = (args[i] != null) ? args[i].getClass() : null;
+      this.hash = 31 * name.hashCode() + Arrays.hashCode(types);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Signature))
+        return false;
+      Signature s = (Signature) o;
+      return name.equals(s.name) && Arrays.equals(types, s.types);
+    }
+  }
+}
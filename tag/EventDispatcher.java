@@ -0,0 +1,167 @@
+// EventDispatcher.java
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The EventDispatcher delivers roster changes to subscribed remote
+ * listeners. Publishing a change only appends it to the queue of each
+ * subscriber, so a slow or dead subscriber never stalls the thread
+ * that changed the roster.
+ *
+ * Each subscriber has a bounded queue. When the queue is full the
+ * oldest change is dropped, and counted in getDropped(). A subscriber is served by at most one
+ * delivery thread at a time, which sends everything queued since its
+ * last delivery in one remote call. Subscribers that fail several
+ * deliveries in a row are dropped.
+ */
+public class EventDispatcher {
+
+  // Consecutive failed deliveries before a subscriber is dropped
+  private static final int MAX_FAILURES = 3;
+
+  private final String source;
+  private final int queueSize;
+  private final Logger log;
+  private final ExecutorService delivery;
+  private final ConcurrentHashMap<BailiffListener, Subscriber> subscribers =
+      new ConcurrentHashMap<>();
+
+  // Changes dropped from full subscriber queues
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * Creates a new dispatcher.
+   *
+   * @param source    The registry name of the Bailiff, passed to the
+   *                  listeners.
+   * @param queueSize The maximum number of undelivered changes kept per
+   *                  subscriber.
+   * @param threads   The number of delivery threads.
+   * @param log       The Bailiff's logger.
+   */
+  public EventDispatcher(String source, int queueSize, int threads, Logger log) {
+    this.source = source;
+    this.queueSize = queueSize;
+    this.log = log;
+    this.delivery = Executors.newFixedThreadPool(threads,
+        AgentEngine.daemonThreads("events"));
+  }
+
+  /**
+   * Adds a subscriber.
+   *
+   * @return False if the listener was already subscribed.
+   */
+  public boolean subscribe(BailiffListener listener) {
+    return subscribers.putIfAbsent(listener, new Subscriber(listener)) == null;
+  }
+
+  /**
+   * Removes a subscriber.
+   *
+   * @return False if the listener was not subscribed.
+   */
+  public boolean unsubscribe(BailiffListener listener) {
+    return subscribers.remove(listener) != null;
+  }
+
+  /**
+   * Returns the number of subscribers.
+   */
+  public int size() {
+    return subscribers.size();
+  }
+
+  /**
+   * Returns the number of changes dropped, over all subscribers, because
+   * their queues were full.
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Queues a change for delivery to every subscriber.
+   */
+  public void publish(RosterChange change) {
+    for (Subscriber s : subscribers.values())
+      s.offer(change);
+  }
+
+  /**
+   * Stops delivering changes.
+   */
+  public void shutdown() {
+    subscribers.clear();
+    delivery.shutdown();
+  }
+
+  /* ================ S u b s c r i b e r ================ */
+
+  /**
+   * A listener with its queue of undelivered changes.
+   */
+  private class Subscriber implements Runnable {
+    private final BailiffListener listener;
+    private final ArrayDeque<RosterChange> queue = new ArrayDeque<>();
+    private boolean scheduled = false; // guarded by queue
+    private int failures = 0; // only touched by the delivery thread
+
+    Subscriber(BailiffListener listener) {
+      this.listener = listener;
+    }
+
+    void offer(RosterChange change) {
+      synchronized (queue) {
+        if (queueSize <= queue.size()) {
+          queue.removeFirst();
+          dropped.increment();
+        }
+        queue.addLast(change);
+        if (scheduled)
+          return;
+        scheduled = true;
+      }
+      delivery.execute(this);
+    }
+
+    /**
+     * Delivers queued changes until the queue is empty.
+     */
+    public void run() {
+      for (;;) {
+        RosterChange[] batch;
+
+        synchronized (queue) {
+          if (queue.isEmpty() || subscribers.get(listener) != this) {
+            queue.clear();
+            scheduled = false;
+            return;
+          }
+          batch = queue.toArray(new RosterChange[queue.size()]);
+          queue.clear();
+        }
+
+        try {
+          listener.rosterChanged(source, batch);
+          failures = 0;
+        } catch (RemoteException | RuntimeException e) {
+          if (MAX_FAILURES <= ++failures) {
+            subscribers.remove(listener, this);
+            if (log.isLoggable(Level.INFO)) {
+              log.info(String.format("unsubscribed %s after %d failures: %s",
+                  listener, failures, e.toString()));
+            }
+          }
+        }
+      }
+    }
+  }
+}
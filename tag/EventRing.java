@@ -0,0 +1,379 @@
+// EventRing.java
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The EventRing is a fixed-size trace of typed events, kept in
+ * primitive arrays. Recording an event claims the next slot with one
+ * atomic increment and writes a timestamp, the event type, an actor and
+ * two arguments into the slot; it neither formats nor allocates. When
+ * the ring is full the oldest events are overwritten.
+ *
+ * Names from a bounded vocabulary, such as Bailiff ids and class
+ * names, are recorded as small integers. A name is interned once with
+ * name(), after which looking it up again does not allocate. Names
+ * without a bound, such as player ids, service names and property keys
+ * sent by clients, are recorded as their hash(), so they do not fill
+ * the name table; the dump shows them as #hex, the same for every
+ * event about the same name.
+ *
+ * The ring can be written to a binary dump, decoded to text, or both:
+ *
+ *   > java EventRing trace.bin
+ *
+ * decodes a dump on standard output.
+ *
+ * One ring is shared by everything in a JVM. Its capacity is set with
+ * -Dtag.trace.size=n (rounded up to a power of two, default 65536) and
+ * recording is turned off with -Dtag.trace=false.
+ */
+public class EventRing {
+
+  /**
+   * The kinds of argument an event can have.
+   */
+  private enum Arg {
+    NONE, NUM, NAME, MS
+  }
+
+  /**
+   * The types of recorded event, with the meaning of their arguments.
+   */
+  public enum Type {
+    MIGRATE("migrate", Arg.NAME, Arg.NUM),   // agent class, residents
+    REJECT("reject", Arg.NUM, Arg.NUM),      // residents, queued
+    DEPART("depart", Arg.NAME, Arg.MS),      // player hash, residency
+    TAG("tag", Arg.NAME, Arg.NAME),          // tagger and victim hash
+    SCAN("scan", Arg.NUM, Arg.NUM),          // good and bad Bailiffs
+    HOP("hop", Arg.NAME, Arg.NONE),          // destination hash
+    FAILURE("failure", Arg.NAME, Arg.NONE),  // exception class
+    PROPERTY("property", Arg.NAME, Arg.NUM), // key hash, 1 if set
+    PASSIVATE("passivate", Arg.NAME, Arg.MS), // agent class, sleep
+    ACTIVATE("activate", Arg.NAME, Arg.MS),  // agent class, lateness
+    BATCH("batch", Arg.NUM, Arg.NUM);        // accepted, refused
+
+    final String label;
+    final Arg a;
+    final Arg b;
+
+    Type(String label, Arg a, Arg b) {
+      this.label = label;
+      this.a = a;
+      this.b = b;
+    }
+  }
+
+  private static final int MAGIC = 0x54414752; // "TAGR"
+  private static final int DUMP_VERSION = 2;
+  private static final int MAX_NAMES = 4096;
+
+  // The bit that marks a recorded name as a hash, not a name index
+  private static final long HASHED = 1L << 32;
+
+  private static final EventRing shared = new EventRing(
+      Integer.getInteger("tag.trace.size", 65536));
+
+  static {
+    shared.setEnabled(!"false".equalsIgnoreCase(System.getProperty("tag.trace")));
+  }
+
+  /**
+   * Returns the ring shared by all Bailiffs and agents in this JVM.
+   */
+  public static EventRing shared() {
+    return shared;
+  }
+
+  // The slots. Slot i holds the event whose sequence number is in
+  // seqs[i]; -1 marks a slot being written.
+  private final int mask;
+  private final long[] times;
+  private final int[] types;
+  private final long[] actors;
+  private final long[] as;
+  private final long[] bs;
+  private final AtomicLongArray seqs;
+
+  // The sequence number of the next event
+  private final AtomicLong cursor = new AtomicLong();
+
+  // Interned names, by index and by value
+  private final String[] names = new String[MAX_NAMES];
+  private final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+  private int nameCount = 0; // guarded by nameIds
+
+  // Wall clock anchor of the nanosecond timestamps
+  private final long epochNanos;
+  private final long anchorNanos;
+
+  private volatile boolean enabled = true;
+
+  /**
+   * Creates a ring.
+   *
+   * @param capacity The number of events kept. Rounded up to a power
+   *                 of two.
+   */
+  public EventRing(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    int size = Integer.highestOneBit(Math.min(capacity, 1 << 30));
+    if (size < capacity)
+      size <<= 1;
+    mask = size - 1;
+    times = new long[size];
+    types = new int[size];
+    actors = new long[size];
+    as = new long[size];
+    bs = new long[size];
+    seqs = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      seqs.set(i, -1);
+    epochNanos = System.currentTimeMillis() * 1_000_000L;
+    anchorNanos = System.nanoTime();
+  }
+
+  /**
+   * Turns recording on or off. Events already recorded are kept.
+   */
+  public void setEnabled(boolean on) {
+    enabled = on;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the number of events the ring keeps.
+   */
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Returns the number of events recorded since the ring was created,
+   * including those that have been overwritten.
+   */
+  public long recorded() {
+    return cursor.get();
+  }
+
+  /**
+   * Returns the index of a name, interning it on first use. Returns -1
+   * for null, and for new names once the name table is full.
+   */
+  public int name(String s) {
+    if (s == null)
+      return -1;
+    Integer id = nameIds.get(s);
+    if (id != null)
+      return id;
+    synchronized (nameIds) {
+      id = nameIds.get(s);
+      if (id != null)
+        return id;
+      if (MAX_NAMES <= nameCount)
+        return -1;
+      names[nameCount] = s;
+      nameIds.put(s, nameCount);
+      return nameCount++;
+    }
+  }
+
+  /**
+   * Returns the hash of a name, to record in place of a name index for
+   * names that are not interned. Returns -1 for null.
+   */
+  public static long hash(String s) {
+    return (s != null) ? HASHED | (s.hashCode() & 0xFFFF_FFFFL) : -1;
+  }
+
+  /**
+   * Records an event.
+   *
+   * @param type  The event type.
+   * @param actor The name index of the Bailiff, or the hash of the
+   *              agent, recording it.
+   * @param a     The first argument, as given by the type.
+   * @param b     The second argument, as given by the type.
+   */
+  public void record(Type type, long actor, long a, long b) {
+    if (!enabled)
+      return;
+    long seq = cursor.getAndIncrement();
+    int i = (int) (seq & mask);
+    seqs.set(i, -1);
+    times[i] = epochNanos + (System.nanoTime() - anchorNanos);
+    types[i] = type.ordinal();
+    actors[i] = actor;
+    as[i] = a;
+    bs[i] = b;
+    seqs.lazySet(i, seq);
+  }
+
+  /* ================ D u m p i n g ================ */
+
+  /**
+   * Writes the names and the events currently in the ring, oldest
+   * first. Events that are overwritten while the dump is taken are
+   * left out.
+   */
+  public void dump(DataOutput out) throws IOException {
+    int n;
+    String[] ns;
+    synchronized (nameIds) {
+      n = nameCount;
+      ns = names.clone();
+    }
+
+    out.writeInt(MAGIC);
+    out.writeInt(DUMP_VERSION);
+    out.writeInt(n);
+    for (int i = 0; i < n; i++)
+      out.writeUTF(ns[i]);
+
+    long end = cursor.get();
+    long start = Math.max(0, end - capacity());
+    for (long seq = start; seq < end; seq++) {
+      int i = (int) (seq & mask);
+      if (seqs.get(i) != seq)
+        continue;
+      long time = times[i];
+      int type = types[i];
+      long actor = actors[i];
+      long a = as[i];
+      long b = bs[i];
+      if (seqs.get(i) != seq)
+        continue;
+      out.writeBoolean(true);
+      out.writeLong(time);
+      out.writeByte(type);
+      out.writeLong(actor);
+      out.writeLong(a);
+      out.writeLong(b);
+    }
+    out.writeBoolean(false);
+  }
+
+  /**
+   * Writes a binary dump of the ring to a file.
+   */
+  public void dump(String fileName) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(fileName)))) {
+      dump(out);
+    }
+  }
+
+  /**
+   * Writes the events currently in the ring as text, one per line.
+   */
+  public void print(OutputStream os) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    dump(new DataOutputStream(bytes));
+    decode(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+        new PrintStream(os, false, "UTF-8"));
+  }
+
+  /**
+   * Reads a binary dump and prints its events as text, one per line.
+   *
+   * @throws IOException Thrown if the input is not a dump.
+   */
+  public static void decode(DataInput in, PrintStream out) throws IOException {
+    if (in.readInt() != MAGIC)
+      throw new IOException("Not an event ring dump");
+    int version = in.readInt();
+    if (version != DUMP_VERSION)
+      throw new IOException("Unsupported event ring dump version " + version);
+
+    String[] ns = new String[in.readInt()];
+    for (int i = 0; i < ns.length; i++)
+      ns[i] = in.readUTF();
+
+    Type[] ts = Type.values();
+    StringBuilder sb = new StringBuilder();
+
+    while (in.readBoolean()) {
+      long time = in.readLong();
+      int type = in.readByte();
+      long actor = in.readLong();
+      long a = in.readLong();
+      long b = in.readLong();
+
+      sb.setLength(0);
+      sb.append(String.format("%tF %<tT.%06d ", new Date(time / 1_000_000L),
+          (time / 1000) % 1_000_000));
+      sb.append(nameOf(ns, actor)).append(' ');
+      if (type < 0 || ts.length <= type) {
+        sb.append("type").append(type).append(' ').append(a).append(' ').append(b);
+      } else {
+        Type t = ts[type];
+        sb.append(t.label);
+        append(sb, ns, t.a, a);
+        append(sb, ns, t.b, b);
+      }
+      out.println(sb);
+    }
+    out.flush();
+  }
+
+  private static void append(StringBuilder sb, String[] ns, Arg kind, long v) {
+    switch (kind) {
+      case NUM:
+        sb.append(' ').append(v);
+        break;
+      case NAME:
+        sb.append(' ').append(nameOf(ns, v));
+        break;
+      case MS:
+        sb.append(' ').append(v).append("ms");
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static String nameOf(String[] ns, long i) {
+    if ((i & ~0xFFFF_FFFFL) == HASHED)
+      return String.format("#%08x", (int) i);
+    return (0 <= i && i < ns.length) ? ns[(int) i] : "?";
+  }
+
+  /* ================ m a i n ================ */
+
+  /**
+   * Decodes the binary dumps named on the commandline.
+   */
+  public static void main(String[] argv) throws IOException {
+    if (argv.length == 0 || argv[0].equals("?") || argv[0].equals("-h")
+        || argv[0].equals("-help")) {
+      System.out.println("Usage: {'?',-h,-help}|file...");
+      System.out.println("Decodes event ring dumps to text on stdout");
+      return;
+    }
+    for (String file : argv) {
+      try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+        decode(new DataInputStream(is), System.out);
+      }
+    }
+  }
+}
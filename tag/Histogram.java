@@ -0,0 +1,105 @@
+// Histogram.java
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Histogram counts non-negative values, such as latencies in
+ * nanoseconds or sizes in bytes, in power-of-two buckets. Bucket 0
+ * holds the value 0 and bucket k (1..63) holds values v with
+ * 2^(k-1) <= v < 2^k.
+ *
+ * Recording is lock-free and does not allocate once warm, so it can be
+ * left on in hot paths. The count and the sum, which every recording
+ * updates, are LongAdders, so threads recording at once do not contend
+ * on them. Reads are not atomic with respect to concurrent
+ * recording; a snapshot may be off by the values recorded while it is
+ * being read.
+ */
+public class Histogram {
+
+  // The number of buckets
+  public static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Records one value. Negative values are recorded as 0.
+   */
+  public void record(long value) {
+    long v = Math.max(0, value);
+    buckets.incrementAndGet(bucketOf(v));
+    count.increment();
+    sum.add(v);
+  }
+
+  /**
+   * Returns the bucket that holds the value.
+   */
+  public static int bucketOf(long value) {
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+  }
+
+  /**
+   * Returns the smallest value that does not fit in the bucket.
+   */
+  public static long upperBound(int bucket) {
+    return (bucket < 63) ? (1L << bucket) : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the number of values in the bucket.
+   */
+  public long getBucket(int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /**
+   * Returns the number of values recorded.
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Returns the sum of the values recorded.
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Returns the mean of the values recorded, or 0.
+   */
+  public double getMean() {
+    long n = count.sum();
+    return (n == 0) ? 0.0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * Returns an estimate of the given quantile: the upper bound of the
+   * bucket in which it falls, which is at most twice the true value.
+   *
+   * @param q The quantile, between 0 and 1.
+   */
+  public long getQuantile(double q) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(q * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (rank <= seen)
+        return upperBound(i) - 1;
+    }
+    return Long.MAX_VALUE;
+  }
+}
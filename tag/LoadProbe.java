@@ -0,0 +1,119 @@
+// LoadProbe.java
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoadProbe asks a set of Bailiffs for their number of players, all at
+ * the same time. The answers are collected into a load snapshot, which
+ * is returned as soon as enough Bailiffs have answered or the deadline
+ * has passed, whichever comes first. A Bailiff that is slow or dead
+ * therefore costs the caller at most the deadline, not a TCP timeout.
+ *
+ * The probe threads are shared by all agents in the JVM and are daemon
+ * threads, so a call that never returns does not keep the JVM alive.
+ * A probe of a dead Bailiff can not be interrupted; it holds its thread
+ * until the socket read deadline. The threads are therefore bounded, by
+ * the system property tag.probe.threads (16), with a queue as long. A
+ * Bailiff that can not be probed because all threads are stuck is left
+ * out of the snapshot, as if it had not answered.
+ */
+public class LoadProbe {
+
+  private static final int threads =
+      Math.max(1, Integer.getInteger("tag.probe.threads", 16));
+
+  // Shared by every agent executing in this JVM
+  private static final ThreadPoolExecutor probes = new ThreadPoolExecutor(
+      threads, threads, 60L, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(threads),
+      AgentEngine.daemonThreads("probe"),
+      new ThreadPoolExecutor.AbortPolicy());
+
+  static {
+    probes.allowCoreThreadTimeOut(true);
+  }
+
+  private LoadProbe() {
+  }
+
+  /**
+   * Probes the number of players of each candidate Bailiff.
+   *
+   * @param candidates The Bailiffs to probe, by name.
+   * @param deadlineMs The maximum time to wait, in milliseconds.
+   * @param quorum     The number of answers after which to return
+   *                   without waiting for the rest.
+   * @return The number of players of each Bailiff that answered in
+   *         time, by name. Bailiffs that failed or did not answer are
+   *         absent.
+   */
+  public static Map<String, Integer> probe(Map<String, BailiffInterface> candidates,
+      long deadlineMs, int quorum) {
+
+    ExecutorCompletionService<Answer> ecs = new ExecutorCompletionService<>(probes);
+    List<Future<Answer>> pending = new ArrayList<>(candidates.size());
+
+    for (Map.Entry<String, BailiffInterface> c : candidates.entrySet()) {
+      final String name = c.getKey();
+      final BailiffInterface bfi = c.getValue();
+      try {
+        pending.add(ecs.submit(new Callable<Answer>() {
+          public Answer call() throws Exception {
+            return new Answer(name, bfi.getNumberOfPlayers());
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        // All probe threads are busy; leave this Bailiff out.
+      }
+    }
+
+    Map<String, Integer> loads = new HashMap<>();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+
+    try {
+      for (int done = 0; done < pending.size() && loads.size() < quorum; done++) {
+        long remaining = deadline - System.nanoTime();
+        Future<Answer> f = ecs.poll(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        if (f == null)
+          break; // deadline
+        try {
+          Answer a = f.get();
+          loads.put(a.name, a.players);
+        } catch (ExecutionException e) {
+          // That Bailiff failed; leave it out of the snapshot.
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (Future<Answer> f : pending)
+      f.cancel(true);
+
+    return loads;
+  }
+
+  /**
+   * The answer of one Bailiff.
+   */
+  private static class Answer {
+    final String name;
+    final int players;
+
+    Answer(String name, int players) {
+      this.name = name;
+      this.players = players;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+// MigrationRequest.java
+
+import java.io.Serializable;
+
+/**
+ * A MigrationRequest is one agent of a batch passed to
+ * BailiffInterface.migrateBatch: the agent, the name of its entry
+ * method and the arguments of the entry method, as they would be
+ * passed to migrate.
+ */
+public final class MigrationRequest implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Object agent;
+  private final String callback;
+  private final Object[] args;
+
+  /**
+   * Creates a new request.
+   *
+   * @param agent    The object to execute.
+   * @param callback The name of the entry method of the agent.
+   * @param args     The arguments of the entry method, an empty array
+   *                 if it has none.
+   */
+  public MigrationRequest(Object agent, String callback, Object[] args) {
+    this.agent = agent;
+    this.callback = callback;
+    this.args = args;
+  }
+
+  public Object getAgent() {
+    return agent;
+  }
+
+  public String getCallback() {
+    return callback;
+  }
+
+  public Object[] getArgs() {
+    return args;
+  }
+
+  public String toString() {
+    return String.format("%s.%s", agent, callback);
+  }
+}
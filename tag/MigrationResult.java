@@ -0,0 +1,60 @@
+// MigrationResult.java
+
+import java.io.Serializable;
+
+/**
+ * A MigrationResult tells the caller of BailiffInterface.migrateBatch
+ * what became of one agent of the batch. An agent that was not
+ * accepted is still the caller's, as if migrate had thrown.
+ */
+public final class MigrationResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * What became of the agent.
+   */
+  public enum Status {
+    ACCEPTED,       // queued for admission, as by migrate
+    OVERLOADED,     // refused, see BailiffOverloadedException
+    NO_SUCH_METHOD  // the entry method was not found
+  }
+
+  private final Status status;
+  private final String message;
+  private final long retryAfterMs;
+
+  /**
+   * Creates a new result.
+   *
+   * @param status       What became of the agent.
+   * @param message      The reason for a refusal, or null.
+   * @param retryAfterMs The suggested delay before trying the Bailiff
+   *                     again, in milliseconds, if it was overloaded.
+   */
+  public MigrationResult(Status status, String message, long retryAfterMs) {
+    this.status = status;
+    this.message = message;
+    this.retryAfterMs = retryAfterMs;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public boolean isAccepted() {
+    return status == Status.ACCEPTED;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public long getRetryAfterMillis() {
+    return retryAfterMs;
+  }
+
+  public String toString() {
+    return (message != null) ? status + ": " + message : status.toString();
+  }
+}
@@ -0,0 +1,610 @@
+// NioBailiffClient.java
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NioBailiffClient is a BailiffInterface that calls a Bailiff
+ * through its NioBailiffServer. Agents use it exactly like an RMI stub.
+ * The operations carried by the NioProtocol go over the NIO transport;
+ * subscribe and unsubscribe, which pass remote listener objects, go to
+ * the Bailiff's RMI stub.
+ *
+ * All clients in a JVM share one connection per server endpoint. Calls
+ * from many threads are pipelined over that connection: every request
+ * carries an id, and a reader thread hands each reply to the call that
+ * waits for it. A call fails with a RemoteException if no reply arrives
+ * within the read deadline of TunedSocketFactory.client().
+ *
+ * The BailiffDirectory returns NioBailiffClients instead of RMI stubs
+ * when the system property tag.transport is set to nio, for Bailiffs
+ * that advertise an NIO endpoint in their "nio" property.
+ */
+public class NioBailiffClient implements BailiffInterface {
+
+  private static final ConcurrentHashMap<InetSocketAddress, Channel> channels =
+      new ConcurrentHashMap<>();
+
+  private final InetSocketAddress endpoint;
+  private final BailiffInterface rmi;
+  private final long timeoutMs;
+
+  /**
+   * Creates a client.
+   *
+   * @param endpoint The address of the Bailiff's NIO server.
+   * @param rmi      The Bailiff's RMI stub, used for the operations the
+   *                 NIO transport does not carry.
+   */
+  public NioBailiffClient(InetSocketAddress endpoint, BailiffInterface rmi) {
+    this.endpoint = endpoint;
+    this.rmi = rmi;
+    this.timeoutMs = TunedSocketFactory.client().getReadTimeout();
+  }
+
+  /**
+   * Returns a client for the Bailiff behind the stub if it advertises an
+   * NIO endpoint, or else the stub itself.
+   *
+   * @throws RemoteException Thrown if the Bailiff can not be asked.
+   */
+  public static BailiffInterface wrap(BailiffInterface rmi)
+      throws RemoteException {
+    String nio = rmi.getProperty("nio");
+    if (nio == null)
+      return rmi;
+    int colon = nio.lastIndexOf(':');
+    if (colon < 0)
+      return rmi;
+    try {
+      return new NioBailiffClient(new InetSocketAddress(nio.substring(0, colon),
+          Integer.parseInt(nio.substring(colon + 1))), rmi);
+    } catch (IllegalArgumentException e) {
+      return rmi;
+    }
+  }
+
+  public String toString() {
+    return "NioBailiffClient[" + endpoint + "]";
+  }
+
+  /* ================ B a i l i f f I n t e r f a c e ================ */
+
+  public String ping() throws RemoteException {
+    return call(NioProtocol.PING, null).readUTF();
+  }
+
+  public String getProperty(String key) throws RemoteException {
+    return call(NioProtocol.GET_PROPERTY, new Request().writeUTF(key)).readNullableUTF();
+  }
+
+  public void migrate(Object obj, String cb, Object[] args)
+      throws RemoteException, NoSuchMethodException,
+      BailiffOverloadedException {
+    byte[] agent;
+    try {
+      agent = NioProtocol.toBytes(new Object[] {obj, cb, args});
+    } catch (IOException e) {
+      throw new MarshalException("Failed to serialize the agent", e);
+    }
+    try {
+      send(NioProtocol.MIGRATE, agent);
+    } catch (NoSuchMethodException | BailiffOverloadedException | RemoteException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RemoteException("Unexpected failure", e);
+    }
+  }
+
+  public MigrationResult[] migrateBatch(MigrationRequest[] batch, boolean atomic)
+      throws RemoteException, NoSuchMethodException,
+      BailiffOverloadedException {
+    byte[] agents;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * batch.length);
+      bytes.write(atomic ? 1 : 0);
+      bytes.write(NioProtocol.toBytes(batch));
+      agents = bytes.toByteArray();
+    } catch (IOException e) {
+      throw new MarshalException("Failed to serialize the agents", e);
+    }
+    // A frame over the limit would make the server drop the connection,
+    // failing every call pipelined on it
+    if (NioProtocol.MAX_FRAME < NioProtocol.HEADER + agents.length)
+      throw new MarshalException(String.format(
+          "A batch of %d agents is %d bytes, more than one frame takes; split it",
+          batch.length, agents.length));
+    try {
+      return send(NioProtocol.MIGRATE_BATCH, agents).readResults();
+    } catch (NoSuchMethodException | BailiffOverloadedException | RemoteException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RemoteException("Unexpected failure", e);
+    }
+  }
+
+  public boolean tagPlayer(UUID uuid) throws RemoteException {
+    return call(NioProtocol.TAG_PLAYER, new Request().writeUUID(uuid)).readBoolean();
+  }
+
+  public PlayerSummary tagNearbyPlayer(UUID tagger) throws RemoteException {
+    Reply in = call(NioProtocol.TAG_NEARBY_PLAYER, new Request().writeUUID(tagger));
+    return in.readBoolean() ? in.readSummary() : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public Map<UUID, PlayerInterface> getPlayers() throws RemoteException {
+    return (Map<UUID, PlayerInterface>) call(NioProtocol.GET_PLAYERS, null).readObject();
+  }
+
+  public PlayerSummary[] getRoster() throws RemoteException {
+    Reply in = call(NioProtocol.GET_ROSTER, null);
+    PlayerSummary[] roster = new PlayerSummary[in.readInt()];
+    for (int i = 0; i < roster.length; i++)
+      roster[i] = in.readSummary();
+    return roster;
+  }
+
+  public RosterPage getRosterPage(RosterQuery query) throws RemoteException {
+    return call(NioProtocol.GET_ROSTER_PAGE, new Request().writeQuery(query)).readPage();
+  }
+
+  public RosterDelta getRosterSince(long version) throws RemoteException {
+    return (RosterDelta) call(NioProtocol.GET_ROSTER_SINCE,
+        new Request().writeLong(version)).readObject();
+  }
+
+  public boolean subscribe(BailiffListener listener) throws RemoteException {
+    return rmi.subscribe(listener);
+  }
+
+  public boolean unsubscribe(BailiffListener listener) throws RemoteException {
+    return rmi.unsubscribe(listener);
+  }
+
+  public Map<UUID, String> getPlayersNames() throws RemoteException {
+    Reply in = call(NioProtocol.GET_PLAYERS_NAMES, null);
+    int n = in.readInt();
+    Map<UUID, String> names = new HashMap<>();
+    for (int i = 0; i < n; i++)
+      names.put(in.readUUID(), in.readNullableUTF());
+    return names;
+  }
+
+  public int getNumberOfPlayers() throws RemoteException {
+    return call(NioProtocol.GET_NUMBER_OF_PLAYERS, null).readInt();
+  }
+
+  public Map<UUID, Boolean> getTaggedPlayers() throws RemoteException {
+    Reply in = call(NioProtocol.GET_TAGGED_PLAYERS, null);
+    int n = in.readInt();
+    Map<UUID, Boolean> tagged = new HashMap<>();
+    for (int i = 0; i < n; i++)
+      tagged.put(in.readUUID(), in.readBoolean());
+    return tagged;
+  }
+
+  public BailiffDigest[] gossip(BailiffDigest[] digests) throws RemoteException {
+    return call(NioProtocol.GOSSIP, new Request().writeDigests(digests)).readDigests();
+  }
+
+  public BailiffDigest[] getGlobalView() throws RemoteException {
+    return call(NioProtocol.GET_GLOBAL_VIEW, null).readDigests();
+  }
+
+  /* ================ C a l l s ================ */
+
+  /**
+   * Makes a call that can only fail with a RemoteException.
+   */
+  private Reply call(byte op, Request r) throws RemoteException {
+    try {
+      return send(op, (r != null) ? r.toByteArray() : new byte[0]);
+    } catch (RemoteException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RemoteException("Unexpected failure", e);
+    }
+  }
+
+  /**
+   * Sends a request and waits for its reply. An exception thrown by the
+   * Bailiff is rethrown.
+   */
+  private Reply send(byte op, byte[] payload) throws Exception {
+    Channel ch = channel();
+    byte[] reply;
+
+    try {
+      reply = ch.call(op, payload, timeoutMs);
+    } catch (IOException e) {
+      throw new RemoteException("NIO call to " + endpoint + " failed", e);
+    }
+
+    if (reply[0] == NioProtocol.FAILED) {
+      Object failure = NioProtocol.fromBytes(reply, 1, reply.length - 1);
+      if (failure instanceof Exception)
+        throw (Exception) failure;
+      throw new RemoteException("Bailiff failed: " + failure);
+    }
+    return new Reply(reply);
+  }
+
+  private Channel channel() throws RemoteException {
+    Channel ch = channels.get(endpoint);
+    if (ch != null && ch.isOpen())
+      return ch;
+    synchronized (channels) {
+      ch = channels.get(endpoint);
+      if (ch != null && ch.isOpen())
+        return ch;
+      try {
+        ch = new Channel(endpoint);
+      } catch (IOException e) {
+        throw new ConnectException("Can not connect to " + endpoint, e);
+      }
+      channels.put(endpoint, ch);
+      return ch;
+    }
+  }
+
+  /* ================ C h a n n e l ================ */
+
+  /**
+   * One connection to a server, shared by all calls to it. Callers
+   * queue their request frames for the writer thread, which copies as
+   * many as fit into its direct buffer and writes them together; the
+   * reader thread owns the direct read buffer. Only these two threads
+   * touch the socket, so interrupting a caller can not close it.
+   */
+  private static final class Channel {
+    private final InetSocketAddress endpoint;
+    private final SocketChannel ch;
+    private final LinkedBlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> pending =
+        new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile IOException failure = null;
+
+    Channel(InetSocketAddress endpoint) throws IOException {
+      this.endpoint = endpoint;
+      ch = SocketChannel.open();
+      ch.socket().setTcpNoDelay(true);
+      ch.socket().setKeepAlive(true);
+      ch.socket().connect(endpoint, TunedSocketFactory.client().getConnectTimeout());
+
+      writer = new Thread(this::writeLoop, "nio-writer-" + endpoint);
+      writer.setDaemon(true);
+      writer.start();
+      Thread reader = new Thread(this::readLoop, "nio-reader-" + endpoint);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    boolean isOpen() {
+      return failure == null;
+    }
+
+    /**
+     * Sends a request and waits for the reply body, whose first byte is
+     * the status. Like a call on an RMI stub, the wait is not cut short
+     * by an interrupt; the interrupt status is kept for the caller.
+     */
+    byte[] call(byte op, byte[] payload, long timeoutMs) throws IOException {
+      int id = nextId.incrementAndGet();
+      CompletableFuture<byte[]> reply = new CompletableFuture<>();
+      pending.put(id, reply);
+
+      byte[] frame = new byte[4 + NioProtocol.HEADER + payload.length];
+      ByteBuffer.wrap(frame)
+          .putInt(NioProtocol.HEADER + payload.length)
+          .putInt(id)
+          .put(op)
+          .put(payload);
+
+      boolean interrupted = false;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+      try {
+        if (failure != null)
+          throw failure;
+        outgoing.add(frame);
+
+        for (;;) {
+          try {
+            if (timeoutMs <= 0)
+              return reply.get();
+            return reply.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } catch (TimeoutException e) {
+        throw new SocketTimeoutException(String.format(
+            "No reply from %s within %d ms", endpoint, timeoutMs));
+      } catch (ExecutionException e) {
+        throw (e.getCause() instanceof IOException)
+            ? (IOException) e.getCause() : new IOException(e.getCause());
+      } finally {
+        pending.remove(id);
+        if (interrupted)
+          Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Writes queued requests, batching those that queued up while the
+     * previous write was in progress.
+     */
+    private void writeLoop() {
+      ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+      try {
+        for (;;) {
+          byte[] frame = outgoing.take();
+          out.clear();
+          do {
+            if (out.capacity() < frame.length) {
+              flush(out);
+              write(ByteBuffer.wrap(frame));
+            } else {
+              if (out.remaining() < frame.length)
+                flush(out);
+              out.put(frame);
+            }
+          } while ((frame = outgoing.poll()) != null);
+          flush(out);
+        }
+      } catch (IOException e) {
+        close(e);
+      } catch (InterruptedException e) {
+        // closed
+      }
+    }
+
+    /**
+     * Writes what is in the buffer and clears it.
+     */
+    private void flush(ByteBuffer buf) throws IOException {
+      buf.flip();
+      write(buf);
+      buf.clear();
+    }
+
+    /**
+     * Writes the buffer from its position to its limit.
+     */
+    private void write(ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining())
+        ch.write(buf);
+    }
+
+    /**
+     * Reads replies and completes the calls waiting for them.
+     */
+    private void readLoop() {
+      ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+      try {
+        for (;;) {
+          if (ch.read(in) < 0)
+            throw new IOException("Connection closed by " + endpoint);
+          in.flip();
+          while (4 <= in.remaining()) {
+            int length = in.getInt(in.position());
+            if (length < NioProtocol.HEADER || NioProtocol.MAX_FRAME < length)
+              throw new IOException("Bad frame length " + length);
+            if (in.remaining() < 4 + length)
+              break;
+            in.getInt();
+            int id = in.getInt();
+            byte[] body = new byte[length - 4]; // status and payload
+            in.get(body);
+            CompletableFuture<byte[]> reply = pending.get(id);
+            if (reply != null)
+              reply.complete(body);
+          }
+          in.compact();
+          if (!in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(2 * in.capacity());
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+          }
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private void close(IOException cause) {
+      if (failure != null)
+        return;
+      failure = cause;
+      channels.remove(endpoint, this);
+      writer.interrupt();
+      try {
+        ch.close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+      for (CompletableFuture<byte[]> reply : pending.values())
+        reply.completeExceptionally(cause);
+    }
+  }
+
+  /* ================ E n c o d i n g ================ */
+
+  /**
+   * The payload of a request.
+   */
+  private static final class Request {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    Request writeUTF(String s) throws RemoteException {
+      try {
+        out.writeUTF(s);
+      } catch (IOException e) {
+        throw new MarshalException("Failed to write the request", e);
+      }
+      return this;
+    }
+
+    Request writeUUID(UUID uuid) throws RemoteException {
+      try {
+        NioProtocol.writeUUID(out, uuid);
+      } catch (IOException e) {
+        throw new MarshalException("Failed to write the request", e);
+      }
+      return this;
+    }
+
+    Request writeLong(long v) throws RemoteException {
+      try {
+        out.writeLong(v);
+      } catch (IOException e) {
+        throw new MarshalException("Failed to write the request", e);
+      }
+      return this;
+    }
+
+    Request writeQuery(RosterQuery query) throws RemoteException {
+      try {
+        NioProtocol.writeQuery(out, query);
+      } catch (IOException e) {
+        throw new MarshalException("Failed to write the request", e);
+      }
+      return this;
+    }
+
+    Request writeDigests(BailiffDigest[] digests) throws RemoteException {
+      try {
+        NioProtocol.writeDigests(out, digests);
+      } catch (IOException e) {
+        throw new MarshalException("Failed to write the request", e);
+      }
+      return this;
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+  }
+
+  /**
+   * The payload of a reply, after the status byte.
+   */
+  private static final class Reply {
+    private final byte[] body;
+    private final DataInputStream in;
+
+    Reply(byte[] body) {
+      this.body = body;
+      this.in = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+    }
+
+    String readUTF() throws RemoteException {
+      try {
+        return in.readUTF();
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    String readNullableUTF() throws RemoteException {
+      try {
+        return AgentCodec.readNullableUTF(in);
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    boolean readBoolean() throws RemoteException {
+      try {
+        return in.readBoolean();
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    int readInt() throws RemoteException {
+      try {
+        return in.readInt();
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    UUID readUUID() throws RemoteException {
+      try {
+        return NioProtocol.readUUID(in);
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    PlayerSummary readSummary() throws RemoteException {
+      try {
+        return NioProtocol.readSummary(in);
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    RosterPage readPage() throws RemoteException {
+      try {
+        return NioProtocol.readPage(in);
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    BailiffDigest[] readDigests() throws RemoteException {
+      try {
+        return NioProtocol.readDigests(in);
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    MigrationResult[] readResults() throws RemoteException {
+      try {
+        return NioProtocol.readResults(in);
+      } catch (IOException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+
+    /**
+     * Reads the serialized object that makes up the rest of the reply.
+     */
+    Object readObject() throws RemoteException {
+      try {
+        return NioProtocol.fromBytes(body, 1, body.length - 1);
+      } catch (IOException | ClassNotFoundException e) {
+        throw new UnmarshalException("Failed to read the reply", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,478 @@
+// NioBailiffServer.java
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The NioBailiffServer is a second transport for a Bailiff, next to
+ * its RMI export. It carries migrate, migrateBatch, tagPlayer,
+ * tagNearbyPlayer, the roster queries and gossip in the frames of the
+ * NioProtocol, without the
+ * handshakes, distributed GC and reflective dispatch of RMI.
+ *
+ * One selector thread accepts connections, reads frames and writes
+ * replies; every connection has a direct read buffer and a direct write
+ * buffer that are reused for all its frames. A read buffer grown for a
+ * large frame is shrunk back once the frame has been read. A failure in
+ * one connection closes that connection only. Requests are executed by a
+ * pool of worker threads, so a client can pipeline many requests over
+ * one connection and slow requests do not hold up fast ones.
+ *
+ * Both are bounded, as admission to the Bailiff is. The workers queue
+ * at most tag.nio.queue requests (64 per worker thread); a request that
+ * does not fit is refused at once with a BailiffOverloadedException.
+ * A connection with tag.nio.pending (64) requests whose replies are
+ * not yet written is not read from until half of them are, so a client
+ * that sends faster than it reads holds back only itself.
+ *
+ * The server calls the Bailiff's own methods, so admission control,
+ * metrics and tracing are the same for both transports. As in RMI, an
+ * Error thrown by an operation is returned to the client in a
+ * ServerError.
+ */
+public class NioBailiffServer {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_PENDING =
+      Math.max(1, Integer.getInteger("tag.nio.pending", 64));
+
+  private final Bailiff bailiff;
+  private final Logger log;
+  private final ServerSocketChannel server;
+  private final Selector selector;
+  private final ExecutorService workers;
+  private final Thread thread;
+
+  // Connections with replies waiting for write interest
+  private final ConcurrentLinkedQueue<Connection> writable =
+      new ConcurrentLinkedQueue<>();
+
+  private volatile boolean running = true;
+
+  /**
+   * Starts the server.
+   *
+   * @param bailiff The Bailiff whose operations are served.
+   * @param port    The TCP port, or 0 for any free port.
+   * @param threads The number of worker threads.
+   * @param log     The Bailiff's logger.
+   * @throws IOException Thrown if the port can not be bound.
+   */
+  public NioBailiffServer(Bailiff bailiff, int port, int threads, Logger log)
+      throws IOException {
+    this.bailiff = bailiff;
+    this.log = log;
+
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+
+    workers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1,
+            Integer.getInteger("tag.nio.queue", 64 * threads))),
+        AgentEngine.daemonThreads("nio-worker-" + bailiff.id));
+
+    thread = new Thread(this::selectLoop, "nio-" + bailiff.id);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the TCP port the server listens on.
+   */
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * Closes the server and all its connections.
+   */
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+    workers.shutdown();
+  }
+
+  /* ================ S e l e c t o r ================ */
+
+  private void selectLoop() {
+    try {
+      while (running) {
+        selector.select();
+
+        Connection c;
+        while ((c = writable.poll()) != null) {
+          try {
+            c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+          } catch (CancelledKeyException closed) {
+            // the connection is gone, and its replies with it
+          }
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          try {
+            if (!key.isValid())
+              continue;
+            if (key.isAcceptable())
+              accept();
+            if (key.isValid() && key.isReadable())
+              ((Connection) key.attachment()).read();
+            if (key.isValid() && key.isWritable())
+              ((Connection) key.attachment()).write();
+          } catch (IOException | RuntimeException e) {
+            if (e instanceof RuntimeException && !(e instanceof CancelledKeyException))
+              log.warning(String.format("NIO connection failed: %s", e.toString()));
+            if (key.channel() != server)
+              close(key);
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      log.warning(String.format("NIO transport stopped: %s", e.toString()));
+    } finally {
+      for (SelectionKey key : selector.keys())
+        close(key);
+      try {
+        selector.close();
+        server.close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel ch = server.accept();
+    if (ch == null)
+      return;
+    ch.configureBlocking(false);
+    ch.socket().setTcpNoDelay(true);
+    Connection c = new Connection(ch);
+    c.key = ch.register(selector, SelectionKey.OP_READ, c);
+  }
+
+  private static void close(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // already closed
+    }
+  }
+
+  /* ================ C o n n e c t i o n ================ */
+
+  /**
+   * The buffers and pending replies of one client connection. The
+   * buffers are only touched by the selector thread.
+   */
+  private class Connection {
+    private final SocketChannel ch;
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // Encoded replies not yet copied into the write buffer, and how
+    // much of the first one has been copied
+    private final ArrayDeque<byte[]> replies = new ArrayDeque<>(); // guarded by replies
+    private int copied = 0;
+
+    // Requests read whose replies are not yet in the write buffer, and
+    // whether reading is held back until they are fewer
+    private int pending = 0;
+    private boolean paused = false;
+
+    Connection(SocketChannel ch) {
+      this.ch = ch;
+      out.flip();
+    }
+
+    /**
+     * Reads what is available and hands the complete frames to the
+     * workers.
+     */
+    void read() throws IOException {
+      if (ch.read(in) < 0)
+        throw new IOException("Connection closed by peer");
+      frames();
+    }
+
+    /**
+     * Hands every complete frame in the read buffer to the workers,
+     * until too many replies are pending. The frames left over are
+     * handed on when reading resumes.
+     */
+    private void frames() throws IOException {
+      in.flip();
+      while (4 <= in.remaining()) {
+        if (MAX_PENDING <= pending) {
+          paused = true;
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+          break;
+        }
+        int length = in.getInt(in.position());
+        if (length < NioProtocol.HEADER || NioProtocol.MAX_FRAME < length)
+          throw new IOException("Bad frame length " + length);
+        if (in.remaining() < 4 + length) {
+          if (in.capacity() < 4 + length) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(4 + length);
+            bigger.put(in);
+            in = bigger;
+            return;
+          }
+          break;
+        }
+        in.getInt();
+        final int id = in.getInt();
+        final byte code = in.get();
+        final byte[] payload = new byte[length - NioProtocol.HEADER];
+        in.get(payload);
+        pending++;
+        try {
+          workers.execute(() -> reply(handle(id, code, payload)));
+        } catch (RejectedExecutionException e) {
+          reply(failure(id, new BailiffOverloadedException(String.format(
+              "%s NIO worker queue is full", bailiff.id),
+              bailiff.getIntProperty("retryafter", 500))));
+        }
+      }
+      in.compact();
+
+      // Give back the memory of a large frame once it has been read
+      if (BUFFER_SIZE < in.capacity() && in.position() <= BUFFER_SIZE) {
+        in.flip();
+        ByteBuffer smaller = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        smaller.put(in);
+        in = smaller;
+      }
+    }
+
+    /**
+     * Queues an encoded reply and asks the selector for write interest.
+     */
+    void reply(byte[] frame) {
+      synchronized (replies) {
+        replies.addLast(frame);
+      }
+      writable.add(this);
+      selector.wakeup();
+    }
+
+    /**
+     * Copies queued replies into the write buffer and writes as much as
+     * the channel takes.
+     */
+    void write() throws IOException {
+      for (;;) {
+        if (!out.hasRemaining()) {
+          out.clear();
+          synchronized (replies) {
+            while (out.hasRemaining() && !replies.isEmpty()) {
+              byte[] head = replies.peekFirst();
+              int n = Math.min(out.remaining(), head.length - copied);
+              out.put(head, copied, n);
+              copied += n;
+              if (copied == head.length) {
+                replies.removeFirst();
+                copied = 0;
+                pending--;
+              }
+            }
+          }
+          out.flip();
+          if (!out.hasRemaining())
+            break;
+        }
+        ch.write(out);
+        if (out.hasRemaining())
+          return; // the socket is full, wait for the next OP_WRITE
+      }
+
+      if (paused && pending <= MAX_PENDING / 2) {
+        paused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        frames();
+      }
+      synchronized (replies) {
+        if (replies.isEmpty())
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    }
+  }
+
+  /* ================ O p e r a t i o n s ================ */
+
+  /**
+   * Executes one request on the Bailiff and returns the encoded reply.
+   */
+  private byte[] handle(int id, byte code, byte[] payload) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+    try {
+      out.writeInt(0); // length, filled in below
+      out.writeInt(id);
+      out.writeByte(NioProtocol.OK);
+
+      switch (code) {
+        case NioProtocol.PING:
+          out.writeUTF(bailiff.ping());
+          break;
+
+        case NioProtocol.GET_PROPERTY:
+          AgentCodec.writeNullableUTF(out, bailiff.getProperty(in.readUTF()));
+          break;
+
+        case NioProtocol.MIGRATE: {
+          Object[] m = (Object[]) NioProtocol.fromBytes(payload, 0, payload.length);
+          bailiff.migrate(m[0], (String) m[1], (Object[]) m[2]);
+          break;
+        }
+
+        case NioProtocol.MIGRATE_BATCH: {
+          MigrationRequest[] batch = (MigrationRequest[]) NioProtocol.fromBytes(
+              payload, 1, payload.length - 1);
+          NioProtocol.writeResults(out, bailiff.migrateBatch(batch, payload[0] == 1));
+          break;
+        }
+
+        case NioProtocol.TAG_PLAYER:
+          out.writeBoolean(bailiff.tagPlayer(NioProtocol.readUUID(in)));
+          break;
+
+        case NioProtocol.TAG_NEARBY_PLAYER: {
+          PlayerSummary victim = bailiff.tagNearbyPlayer(NioProtocol.readUUID(in));
+          out.writeBoolean(victim != null);
+          if (victim != null)
+            NioProtocol.writeSummary(out, victim);
+          break;
+        }
+
+        case NioProtocol.GET_PLAYERS:
+          out.write(NioProtocol.toBytes(bailiff.getPlayers()));
+          break;
+
+        case NioProtocol.GET_ROSTER: {
+          PlayerSummary[] roster = bailiff.getRoster();
+          out.writeInt(roster.length);
+          for (PlayerSummary s : roster)
+            NioProtocol.writeSummary(out, s);
+          break;
+        }
+
+        case NioProtocol.GET_ROSTER_PAGE:
+          NioProtocol.writePage(out, bailiff.getRosterPage(NioProtocol.readQuery(in)));
+          break;
+
+        case NioProtocol.GET_ROSTER_SINCE:
+          out.write(NioProtocol.toBytes(bailiff.getRosterSince(in.readLong())));
+          break;
+
+        case NioProtocol.GET_PLAYERS_NAMES: {
+          Map<UUID, String> names = bailiff.getPlayersNames();
+          out.writeInt(names.size());
+          for (Map.Entry<UUID, String> e : names.entrySet()) {
+            NioProtocol.writeUUID(out, e.getKey());
+            AgentCodec.writeNullableUTF(out, e.getValue());
+          }
+          break;
+        }
+
+        case NioProtocol.GET_NUMBER_OF_PLAYERS:
+          out.writeInt(bailiff.getNumberOfPlayers());
+          break;
+
+        case NioProtocol.GET_TAGGED_PLAYERS: {
+          Map<UUID, Boolean> tagged = bailiff.getTaggedPlayers();
+          out.writeInt(tagged.size());
+          for (Map.Entry<UUID, Boolean> e : tagged.entrySet()) {
+            NioProtocol.writeUUID(out, e.getKey());
+            out.writeBoolean(e.getValue());
+          }
+          break;
+        }
+
+        case NioProtocol.GOSSIP:
+          NioProtocol.writeDigests(out, bailiff.gossip(NioProtocol.readDigests(in)));
+          break;
+
+        case NioProtocol.GET_GLOBAL_VIEW:
+          NioProtocol.writeDigests(out, bailiff.getGlobalView());
+          break;
+
+        default:
+          throw new RemoteException("Unknown NIO operation " + code);
+      }
+    } catch (Throwable t) {
+      Exception e;
+      if (t instanceof Exception)
+        e = (Exception) t;
+      else if (t instanceof Error)
+        e = new ServerError("Error in NIO operation " + code, (Error) t);
+      else
+        e = new RemoteException(t.toString());
+      return failure(id, e);
+    }
+
+    byte[] frame = bytes.toByteArray();
+    ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+    return frame;
+  }
+
+  /**
+   * Returns the encoded reply that fails a request with an exception.
+   */
+  private static byte[] failure(int id, Exception e) {
+    byte[] cause = encodeFailure(e);
+    ByteBuffer frame = ByteBuffer.allocate(4 + NioProtocol.HEADER + cause.length);
+    frame.putInt(NioProtocol.HEADER + cause.length).putInt(id)
+        .put(NioProtocol.FAILED).put(cause);
+    return frame.array();
+  }
+
+  /**
+   * Serializes an exception for the client. An exception that can not
+   * be serialized is sent as a RemoteException with its description.
+   */
+  private static byte[] encodeFailure(Exception e) {
+    try {
+      return NioProtocol.toBytes(e);
+    } catch (IOException notSerializable) {
+      try {
+        return NioProtocol.toBytes(new RemoteException(e.toString()));
+      } catch (IOException never) {
+        return new byte[0];
+      }
+    }
+  }
+}
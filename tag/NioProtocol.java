@@ -0,0 +1,223 @@
+// NioProtocol.java
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.server.RemoteObject;
+import java.util.UUID;
+
+/**
+ * The NioProtocol is the framing and encoding shared by the
+ * NioBailiffServer and the NioBailiffClient.
+ *
+ * Requests and replies are frames:
+ *
+ *   int  length   The number of bytes that follow
+ *   int  id       Chosen by the client, echoed in the reply
+ *   byte code     The operation in a request, the status in a reply
+ *   ...  payload
+ *
+ * The client may send many requests on one connection without waiting;
+ * the server may reply in any order, and the client matches replies to
+ * requests by id.
+ *
+ * Arguments and results of the tag operations, roster queries and
+ * gossip are written with DataOutput. Agents, maps and exceptions are written
+ * with Java serialization, as RMI would. A batch of agents is written as
+ * one serialized array after a byte that is 1 if the batch is atomic.
+ */
+final class NioProtocol {
+
+  private NioProtocol() {
+  }
+
+  // The largest frame accepted, in bytes after the length field
+  static final int MAX_FRAME = 16 << 20;
+
+  // The size of the frame header after the length field
+  static final int HEADER = 5;
+
+  // Request codes
+  static final byte PING = 1;
+  static final byte GET_PROPERTY = 2;
+  static final byte MIGRATE = 3;
+  static final byte TAG_PLAYER = 4;
+  static final byte TAG_NEARBY_PLAYER = 5;
+  static final byte GET_PLAYERS = 6;
+  static final byte GET_ROSTER = 7;
+  static final byte GET_ROSTER_SINCE = 8;
+  static final byte GET_PLAYERS_NAMES = 9;
+  static final byte GET_NUMBER_OF_PLAYERS = 10;
+  static final byte GET_TAGGED_PLAYERS = 11;
+  static final byte GOSSIP = 12;
+  static final byte GET_GLOBAL_VIEW = 13;
+  static final byte MIGRATE_BATCH = 14;
+  static final byte GET_ROSTER_PAGE = 15;
+
+  // Reply codes
+  static final byte OK = 0;
+  static final byte FAILED = 1; // the payload is a serialized exception
+
+  static void writeUUID(DataOutput out, UUID uuid) throws IOException {
+    out.writeLong(uuid.getMostSignificantBits());
+    out.writeLong(uuid.getLeastSignificantBits());
+  }
+
+  static UUID readUUID(DataInput in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  static void writeSummary(DataOutput out, PlayerSummary s) throws IOException {
+    writeUUID(out, s.getUUID());
+    AgentCodec.writeNullableUTF(out, s.getName());
+    out.writeBoolean(s.isTagged());
+    out.writeBoolean(s.isMigrating());
+    out.writeLong(s.getArrivalTime());
+  }
+
+  static PlayerSummary readSummary(DataInput in) throws IOException {
+    return new PlayerSummary(readUUID(in), AgentCodec.readNullableUTF(in),
+        in.readBoolean(), in.readBoolean(), in.readLong());
+  }
+
+  static void writeQuery(DataOutput out, RosterQuery q) throws IOException {
+    out.writeInt(q.getPageSize());
+    out.writeBoolean(q.isUntaggedOnly());
+    out.writeBoolean(q.isNotMigrating());
+    AgentCodec.writeNullableUTF(out, q.getNamePrefix());
+    out.writeLong(q.getVersion());
+    out.writeLong(q.getLast());
+    out.writeLong(q.getAfter());
+  }
+
+  static RosterQuery readQuery(DataInput in) throws IOException {
+    try {
+      return new RosterQuery(in.readInt(), in.readBoolean(), in.readBoolean(),
+          AgentCodec.readNullableUTF(in), in.readLong(), in.readLong(),
+          in.readLong());
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  static void writePage(DataOutput out, RosterPage page) throws IOException {
+    out.writeLong(page.getVersion());
+    out.writeInt(page.getPlayers().length);
+    for (PlayerSummary s : page.getPlayers())
+      writeSummary(out, s);
+    out.writeBoolean(!page.isLast());
+    if (!page.isLast())
+      writeQuery(out, page.getNext());
+  }
+
+  static RosterPage readPage(DataInput in) throws IOException {
+    long version = in.readLong();
+    PlayerSummary[] players = new PlayerSummary[in.readInt()];
+    for (int i = 0; i < players.length; i++)
+      players[i] = readSummary(in);
+    return new RosterPage(version, players, in.readBoolean() ? readQuery(in) : null);
+  }
+
+  static void writeDigests(DataOutput out, BailiffDigest[] digests)
+      throws IOException {
+    out.writeInt(digests.length);
+    for (BailiffDigest d : digests) {
+      out.writeUTF(d.getName());
+      AgentCodec.writeNullableUTF(out, d.getId());
+      out.writeLong(d.getVersion());
+      out.writeInt(d.getRosterSize());
+      out.writeInt(d.getLoad());
+      out.writeBoolean(d.containsIt());
+    }
+  }
+
+  static BailiffDigest[] readDigests(DataInput in) throws IOException {
+    BailiffDigest[] digests = new BailiffDigest[in.readInt()];
+    for (int i = 0; i < digests.length; i++) {
+      digests[i] = new BailiffDigest(in.readUTF(), AgentCodec.readNullableUTF(in),
+          in.readLong(), in.readInt(), in.readInt(), in.readBoolean());
+    }
+    return digests;
+  }
+
+  static void writeResults(DataOutput out, MigrationResult[] results)
+      throws IOException {
+    out.writeInt(results.length);
+    for (MigrationResult r : results) {
+      out.writeByte(r.getStatus().ordinal());
+      AgentCodec.writeNullableUTF(out, r.getMessage());
+      out.writeLong(r.getRetryAfterMillis());
+    }
+  }
+
+  static MigrationResult[] readResults(DataInput in) throws IOException {
+    MigrationResult.Status[] statuses = MigrationResult.Status.values();
+    MigrationResult[] results = new MigrationResult[in.readInt()];
+    for (int i = 0; i < results.length; i++) {
+      int status = in.readUnsignedByte();
+      if (statuses.length <= status)
+        throw new IOException("Unknown migration status " + status);
+      results[i] = new MigrationResult(statuses[status],
+          AgentCodec.readNullableUTF(in), in.readLong());
+    }
+    return results;
+  }
+
+  /**
+   * Serializes an object into a byte array. Exported remote objects are
+   * replaced by their stubs, as RMI marshalling does.
+   */
+  static byte[] toBytes(Object o) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes) {
+      {
+        enableReplaceObject(true);
+      }
+
+      protected Object replaceObject(Object obj) {
+        if (obj instanceof Remote) {
+          try {
+            return RemoteObject.toStub((Remote) obj);
+          } catch (NoSuchObjectException notExported) {
+            // a stub, or an object sent by value
+          }
+        }
+        return obj;
+      }
+    }) {
+      out.writeObject(o);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Deserializes an object written by toBytes. Classes are resolved
+   * through the context class loader of the calling thread, if any.
+   */
+  static Object fromBytes(byte[] b, int off, int len)
+      throws IOException, ClassNotFoundException {
+    try (ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(b, off, len)) {
+      protected Class<?> resolveClass(java.io.ObjectStreamClass desc)
+          throws IOException, ClassNotFoundException {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        if (cl != null) {
+          try {
+            return Class.forName(desc.getName(), false, cl);
+          } catch (ClassNotFoundException e) {
+            // fall back to the default resolution
+          }
+        }
+        return super.resolveClass(desc);
+      }
+    }) {
+      return in.readObject();
+    }
+  }
+}
@@ -1,18 +1,21 @@
 
 //Player.java
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
-import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Predicate;
 
 /**
  * Player extends Dexter. The Player objects will represent the players in the
@@ -26,21 +29,55 @@ public class Player extends Dexter implements PlayerInterface {
   // UUID for the player
   private UUID uuid;
 
-  // The good Bailiffs
-  private Map<String, BailiffInterface> goodNames;
+  // The good Bailiffs. Not migrated, rebuilt by scanForBailiffs.
+  private transient Map<String, BailiffInterface> goodNames;
 
-  // isTagged flag
-  private boolean isIt;
+  // The state word: the phase of the player's stay in a Bailiff and
+  // two flags. It is only changed by compare-and-set, so a tag, a tag
+  // hand-off and a migration never interleave on the same player.
+  //
+  //   RESIDENT   Registered and running; may be tagged and pass the tag
+  //   MIGRATING  Being serialized and sent, or not yet started after
+  //              arrival; tags fail at once
+  //   DEPARTED   Has migrated away; this copy is about to end
+  //   IT         Holds the tag, in any phase
+  //   HANDOFF    Passing the tag on; the player can not start migrating
+  private volatile int state = RESIDENT;
 
-  // Migration flag
-  private boolean migrating;
+  private static final int IT = 1;
+  private static final int HANDOFF = 2;
+  private static final int RESIDENT = 0 << 2;
+  private static final int MIGRATING = 1 << 2;
+  private static final int DEPARTED = 2 << 2;
+  private static final int PHASE = 3 << 2;
 
-  // Current Bailiff
-  private BailiffInterface currentBailiff;
+  private static final AtomicIntegerFieldUpdater<Player> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(Player.class, "state");
+
+  // Registry name of the current Bailiff
+  private String currentName;
+
+  // Current Bailiff. Not migrated, resolved from currentName.
+  private transient BailiffInterface currentBailiff;
+
+  // Bailiffs that refused us in this round because they are full. Not
+  // migrated.
+  private transient Set<String> overloaded = new HashSet<>();
+
+  // How long to wait for the Bailiffs' numbers of players
+  protected long probeDeadlineMs = 1000;
 
   // =============== Tag Setter
   public void setTag() {
-    this.isIt = true;
+    int s;
+    do {
+      s = this.state;
+    } while (!STATE.compareAndSet(this, s, s | IT));
+  }
+
+  // =============== Probe Deadline Setter
+  public void setProbeDeadline(long ms) {
+    this.probeDeadlineMs = Math.max(0, ms);
   }
 
   // =============== Interfaces implementation
@@ -55,20 +92,75 @@ public class Player extends Dexter implements PlayerInterface {
     return this.id;
   }
 
-  // Implementing tag method
+  // Implementing tag method: only a resident player that is not it
+  // can be tagged
   public boolean tag() throws java.rmi.RemoteException {
-    this.isIt = true;
+    return STATE.compareAndSet(this, RESIDENT, RESIDENT | IT);
+  }
+
+  // Implementing passTag method. The HANDOFF flag keeps this player
+  // resident and it until the victim has answered, so no other
+  // transition can happen to it meanwhile and the final write is safe.
+  public boolean passTag(PlayerInterface victim) throws java.rmi.RemoteException {
+    if (!STATE.compareAndSet(this, RESIDENT | IT, RESIDENT | IT | HANDOFF))
+      return false;
+    boolean passed = false;
+    try {
+      passed = victim.tag();
+    } finally {
+      this.state = passed ? RESIDENT : RESIDENT | IT;
+    }
+    return passed;
+  }
+
+  // Implementing arrive method. A copy arrives migrating; a player
+  // handed over within one JVM arrives as the object that departed.
+  public boolean arrive() throws java.rmi.RemoteException {
+    int s;
+    do {
+      s = this.state;
+      if ((s & PHASE) != MIGRATING && (s & PHASE) != DEPARTED)
+        return false;
+    } while (!STATE.compareAndSet(this, s, (s & IT) | RESIDENT));
     return true;
   }
 
   // Implementing isTagged method
   public boolean isTagged() throws java.rmi.RemoteException {
-    return this.isIt;
+    return (this.state & IT) != 0;
   }
 
   // Implementing isMigrating method
   public boolean isMigrating() throws java.rmi.RemoteException {
-    return this.migrating;
+    return (this.state & PHASE) != RESIDENT;
+  }
+
+  /**
+   * Moves from RESIDENT to MIGRATING, waiting for a tag hand-off in
+   * progress to finish. The state that is then serialized is the state
+   * the new copy starts from.
+   *
+   * @return False if the player is not resident.
+   */
+  private boolean beginMigration() {
+    for (;;) {
+      int s = this.state;
+      if ((s & PHASE) != RESIDENT)
+        return false;
+      if ((s & HANDOFF) != 0)
+        Thread.yield();
+      else if (STATE.compareAndSet(this, s, (s & IT) | MIGRATING))
+        return true;
+    }
+  }
+
+  /**
+   * Moves from MIGRATING to DEPARTED if the migration succeeded, or
+   * back to RESIDENT if it failed. No other thread changes the state of
+   * a migrating player, so a plain write suffices.
+   */
+  private void endMigration(boolean departed) {
+    this.state = (this.state & IT) | (departed ? DEPARTED : RESIDENT);
   }
 
   // ================== Constructor
@@ -76,232 +168,394 @@ public class Player extends Dexter implements PlayerInterface {
     super();
     this.uuid = UUID.randomUUID();
     this.goodNames = new HashMap<>();
-    this.isIt = false;
-    this.migrating = false;
     this.currentBailiff = null;
   }
 
-  // ================== Helpers Methods
+  // ================== Migrated State
 
   /**
-   * Scan for Baliff services.
+   * Writes the fields that migrate with the Player.
    */
-  protected void scanForBailiffs() {
+  public void writeState(DataOutput out) throws IOException {
+    super.writeState(out);
+    out.writeLong(this.uuid.getMostSignificantBits());
+    out.writeLong(this.uuid.getLeastSignificantBits());
+    int s = this.state;
+    out.writeBoolean((s & IT) != 0);
+    out.writeBoolean((s & PHASE) != RESIDENT);
+    AgentCodec.writeNullableUTF(out, this.currentName);
+    out.writeLong(this.probeDeadlineMs);
+  }
 
-    boolean badName = false;
+  /**
+   * Reads the fields written by writeState.
+   */
+  public void readState(DataInput in, int version) throws IOException {
+    super.readState(in, version);
+    this.uuid = new UUID(in.readLong(), in.readLong());
+    boolean it = in.readBoolean();
+    boolean migrating = in.readBoolean();
+    this.state = (it ? IT : 0) | (migrating ? MIGRATING : RESIDENT);
+    this.currentName = AgentCodec.readNullableUTF(in);
+    this.probeDeadlineMs = in.readLong();
+  }
 
-    try {
+  // ================== Helpers Methods
 
-      // Get the default RMI registry
+  /**
+   * Returns the stub of the current Bailiff. After a migration only its
+   * name is known, and the stub is resolved through the directory.
+   */
+  private BailiffInterface currentBailiff() {
+    if (this.currentBailiff == null && this.currentName != null) {
+      try {
+        this.currentBailiff = BailiffDirectory.shared().lookup(this.currentName);
+      } catch (Exception e) {
+        traceFailure(e);
+        if (debug)
+          debugMsg("Failed to resolve current Bailiff: " + e.toString());
+      }
+    }
+    return this.currentBailiff;
+  }
 
-      Registry registry = LocateRegistry.getRegistry(null);
+  /**
+   * Returns the current Bailiff's view of the mesh by service name, or
+   * an empty map if there is no current Bailiff, BailiffHealth reports
+   * it down, or it can not be asked.
+   */
+  private Map<String, BailiffDigest> globalView() {
+    Map<String, BailiffDigest> view = new HashMap<>();
+    if (this.currentName != null
+        && !BailiffHealth.shared().allow(this.currentName))
+      return view;
+    BailiffInterface current = currentBailiff();
+    if (current != null) {
+      try {
+        for (BailiffDigest d : current.getGlobalView())
+          view.put(d.getName(), d);
+      } catch (RemoteException e) {
+        traceFailure(e);
+        if (debug)
+          debugMsg("Failed to get the global view: " + e.toString());
+      }
+    }
+    return view;
+  }
 
-      // Ask for all registered services
+  /**
+   * Returns the names of the candidates whose digest in the view
+   * passes the test.
+   */
+  private static List<String> select(Map<String, BailiffInterface> candidates,
+      Map<String, BailiffDigest> view, Predicate<BailiffDigest> test) {
+    List<String> names = new ArrayList<>();
+    for (String name : candidates.keySet()) {
+      BailiffDigest d = view.get(name);
+      if (d != null && test.test(d))
+        names.add(name);
+    }
+    return names;
+  }
 
-      String[] serviceNames = registry.list();
+  /**
+   * Scan for Baliff services. Names and stubs come from the directory
+   * shared by all agents in the JVM.
+   */
+  protected void scanForBailiffs() {
 
-      // Inspect the list of service names
+    BailiffDirectory directory = BailiffDirectory.shared();
 
-      for (String name : serviceNames) {
+    try {
+
+      // Ask for all registered Bailiffs
 
-        if (name.startsWith("Bailiff")) {
+      String[] serviceNames = directory.list();
+      BailiffHealth health = BailiffHealth.shared();
+      int shunned = 0;
 
-          // If the name already is on the bad list, ignore it
+      // Inspect the list of service names
 
-          if (this.goodNames.containsKey(name))
-            continue;
+      for (String name : serviceNames) {
 
-          // Else, optimistically add it to the good names
+        // If the Bailiff is known to be down in this JVM, ignore it
 
-          // Lookup the service name we selected
+        if (!health.allow(name)) {
+          this.goodNames.remove(name);
+          shunned++;
+          continue;
+        }
 
-          try {
-            Remote service = registry.lookup(name);
+        // If the name already is on the good list, ignore it
 
-            // Verify it is what we want
+        if (this.goodNames.containsKey(name))
+          continue;
 
-            if (service instanceof BailiffInterface) {
+        // Else, optimistically add it to the good names
 
-              BailiffInterface bfi = (BailiffInterface) service;
+        // Lookup the service name we selected
 
-              // Add the name to the good list
-              this.goodNames.put(name, bfi);
-            }
-          } catch (Exception e) {
-            badName = true;
+        try {
+          this.goodNames.put(name, directory.lookup(name));
+        } catch (Exception e) {
+          if (debug)
             debugMsg(String.format("Bad service name found: %s", name));
-            badNames.add(name);
-          }       
+          directory.invalidate(name);
         }
       }
+
+      trace(EventRing.Type.SCAN, goodNames.size(), shunned);
+
     } catch (Exception e) {
-      debugMsg("Scanning for Bailiffs failed: " + e.toString());
+      traceFailure(e);
+      if (debug)
+        debugMsg("Scanning for Bailiffs failed: " + e.toString());
     }
   } 
 
   // ================== Behavior Methods
 
-  public void topLevel()
-      throws java.io.IOException {
-    jumpCount++;
-    // Reset migrating flag
-    this.migrating = false;
+  /**
+   * Runs the next step of the Player: arrive, pass the tag on if it,
+   * and take the restraint sleep; scan for Bailiffs; or try to migrate
+   * to one of them. A Player that is not it prefers Bailiffs without
+   * players; a Player that is it picks one at random. topLevel, as
+   * inherited from Dexter, runs these steps on the Player's thread.
+   *
+   * @return The milliseconds until the next step, or DONE when the
+   *         Player has migrated.
+   */
+  public long step() {
+    switch (phase) {
 
-    // Debug tag flag
-    // debugMsg("Is it: " + this.isIt);
-    // Debug current Bailiff
-    // debugMsg("Current Bailiff: " + this.currentBailiff);
+      case ARRIVE:
+        jumpCount++;
+        // The Bailiff marks the player resident when it registers it;
+        // this covers a player started outside a Bailiff's registry
+        try {
+          arrive();
+        } catch (RemoteException never) {
+          // a local call
+        }
 
-    // Tag behavior
-    if (this.currentBailiff != null) {
-      try {
-        if (this.isIt) {
-          debugMsg(id + " is it!");
-          // Get the players from the current Bailiff
-          Map<UUID, PlayerInterface> players = this.currentBailiff.getPlayers();
-          // Get the first player eligible to be tagged!
-          for (UUID uuid : players.keySet()) {
-            // If the player is not tagged and not migrating
-            if (!players.get(uuid).isTagged() && !players.get(uuid).isMigrating()) {
-              // Tag the player
-              this.currentBailiff.tagPlayer(uuid);
-              debugMsg(id + " tagged " + players.get(uuid).getName());
-              this.isIt = false;
-              break;
+        // Debug tag flag
+        // debugMsg("Is it: " + isTagged());
+        // Debug current Bailiff
+        // debugMsg("Current Bailiff: " + this.currentName);
+
+        // Tag behavior
+        BailiffInterface current = currentBailiff();
+        if (current != null) {
+          try {
+            if (isTagged()) {
+              if (debug)
+                debugMsg(id + " is it!");
+              // Let the current Bailiff pass the tag on to an eligible
+              // player. On success the Bailiff has already untagged us.
+              PlayerSummary victim = current.tagNearbyPlayer(this.uuid);
+              if (victim != null && debug) {
+                debugMsg(id + " tagged " + victim.getName());
+              }
             }
+          } catch (RemoteException e) {
+            traceFailure(e);
+            if (debug)
+              debugMsg("Failed to tag: " + e.toString());
           }
         }
-      } catch (RemoteException e) {
-        debugMsg("Failed to tag: " + e.toString());
-      }
-    }
-
-    // Loop forever until we have successfully jumped to a Bailiff.
-
-    for (;;) {
-
-      long retryInterval = 0; // incremented when no Bailiffs are found
 
-      // Sleep a bit so that humans can keep up.
+        // Sleep a bit so that humans can keep up.
 
-      debugMsg("Is here - entering restraint sleep.");
-      snooze(restraintSleepMs);
-      debugMsg("Leaving restraint sleep.");
+        debugMsg("Is here - entering restraint sleep.");
+        phase = SCAN;
+        return restraintSleepMs;
 
-      // Try to find Bailiffs.
-      // The loop keeps going until we get a non-empty list of good names.
-      // If no results are found, we sleep a bit between attempts.
+      case SCAN:
+        debugMsg("Looking for Bailiffs.");
 
-      do {
+        // Try to find Bailiffs. If none are found, sleep a bit and try
+        // again.
 
-        if (0 < retryInterval) {
+        scanForBailiffs();
+        if (goodNames.isEmpty()) {
           debugMsg("No Bailiffs detected - sleeping.");
-          snooze(retryInterval);
-          debugMsg("Waking up, looking for Bailiffs.");
+          return retrySleep;
         }
 
-        scanForBailiffs();
+        // Now, at least one possibly good Bailiff has been found.
 
-        retryInterval = retrySleep;
+        if (debug)
+          debugMsg("Found " + goodNames.size() + " Bailiffs");
+        overloaded.clear();
+        phase = HOP;
+        return 0;
 
-        // If no lookup servers or bailiffs are found, go back up to
-        // the beginning of the loop, sleep a bit, and then try again.
-
-      } while (goodNames.isEmpty());
+      default:
+        return hop();
+    }
+  }
 
-      // Now, at least one possibly good Bailiff has been found.
+  /**
+   * Picks one Bailiff and tries to migrate to it. If that fails, the
+   * Bailiff is dropped from the good ones and reported to
+   * BailiffHealth, and the next step tries another one.
+   */
+  private long hop() {
+
+    // The Bailiffs we may still try in this round, without those that
+    // another agent in this JVM has found down meanwhile
+    BailiffHealth health = BailiffHealth.shared();
+    this.goodNames.keySet().removeIf(name -> !health.allow(name));
+    Map<String, BailiffInterface> candidates = new HashMap<>(this.goodNames);
+    candidates.keySet().removeAll(overloaded);
+    if (candidates.isEmpty()) {
+      debugMsg("All Bailiffs are overloaded.");
+      return allFailed();
+    }
 
-      debugMsg("Found " + goodNames.size() + " Bailiffs");
+    // Name of the service to migrate to
+    String serviceName = null;
+
+    // The current Bailiff knows the whole mesh from gossip, so one call
+    // to it replaces a probe of every candidate
+    Map<String, BailiffDigest> view = globalView();
+    List<String> keys;
+
+    // If the player is not tagged, we will select a Bailiff with less players
+    if ((this.state & IT) == 0) {
+      if (!view.isEmpty()) {
+        // Prefer empty Bailiffs, and otherwise any Bailiff without 'it'
+        keys = select(candidates, view, d -> d.getRosterSize() == 0 && !d.containsIt());
+        if (keys.isEmpty())
+          keys = select(candidates, view, d -> !d.containsIt());
+        if (debug)
+          debugMsg(String.format("View of %d Bailiffs, %d choices",
+              view.size(), keys.size()));
+      } else {
+        // Without a view, ask all Bailiffs for their number of players
+        // at once, and keep those that are known to be empty
+        int quorum = candidates.size() / 2 + 1;
+        Map<String, Integer> loads = LoadProbe.probe(candidates,
+            this.probeDeadlineMs, quorum);
+        keys = new ArrayList<>();
+        for (Map.Entry<String, Integer> load : loads.entrySet()) {
+          if (load.getValue() == 0)
+            keys.add(load.getKey());
+        }
+        if (debug)
+          debugMsg(String.format("Probed %d of %d Bailiffs, %d empty",
+              loads.size(), candidates.size(), keys.size()));
+      }
+    } else {
+      // If the player is tagged, we will prefer a Bailiff with players
+      // to tag
+      keys = select(candidates, view, d -> 0 < d.getRosterSize());
+    }
 
-      // Enter a loop in which we:
-      // - randomly pick one Bailiff
-      // - migrate to it, or if that fail, try another one
+    // If no Bailiff is preferred, we will select a random one
+    if (keys.isEmpty())
+      keys = new ArrayList<>(candidates.keySet());
+    serviceName = keys.get(new Random().nextInt(keys.size()));
 
-      while (!goodNames.isEmpty()) {
+    // Service to migrate
+    BailiffInterface service = this.goodNames.get(serviceName);
 
-        // Service to migrate
-        BailiffInterface service = null;
+    // Prepare some state flags
 
-        // If the player is not tagged, we will select a Bailiff with less players
-        if (!this.isIt) {
-          // Get the number of players from each Bailiff
-          Map<String, BailiffInterface> tempGoodNames = new HashMap<>(this.goodNames);
-          for (String name : this.goodNames.keySet()) {
-            try {
-              if (this.goodNames.get(name).getNumberOfPlayers() > 0) {
-                tempGoodNames.remove(name);
-              }
-            } catch (RemoteException e) {
-              debugMsg("Failed to get number of players: " + e.toString());
-            }
-          }
-          // If there are no Bailiffs with less players, we will select a random one
-          if (tempGoodNames.isEmpty()) {
-            List<String> keys = new ArrayList<>(this.goodNames.keySet());
-            Random rand = new Random();
-            String randomKey = keys.get(rand.nextInt(keys.size()));
-            service = this.goodNames.get(randomKey);
-          } else {
-            List<String> keys = new ArrayList<>(tempGoodNames.keySet());
-            Random rand = new Random();
-            String randomKey = keys.get(rand.nextInt(keys.size()));
-            service = tempGoodNames.get(randomKey);
-          }
-        } else {
-          // If the player is tagged, we will select a random Bailiff
-          List<String> keys = new ArrayList<>(this.goodNames.keySet());
-          Random rand = new Random();
-          String randomKey = keys.get(rand.nextInt(keys.size()));
-          service = this.goodNames.get(randomKey);
-        }
+    boolean noRegistry = false;
+    boolean badName = false;
 
-        // Prepare some state flags
+    // The Bailiff the player is in, for when the migration fails. The
+    // target is set before migrating, so that the copy that arrives
+    // knows where it is.
 
-        boolean noRegistry = false;
-        boolean badName = false;
+    String fromName = this.currentName;
+    BailiffInterface fromBailiff = this.currentBailiff;
 
-        // Attempt to migrate
+    // Attempt to migrate
 
+    try {
+      debugMsg("Trying to migrate");
+
+      if (service != null) {
+        this.currentName = serviceName;
+        this.currentBailiff = service;
+        trace(EventRing.Type.HOP, EventRing.hash(serviceName), 0);
+        // From here on tags fail at once, until the migration has
+        // failed or this copy has departed. A player that is not
+        // resident has already left, or not yet arrived, and must not
+        // be sent anywhere from here.
+        if (!beginMigration()) {
+          debugMsg("Not resident, migration aborted");
+          this.currentName = fromName;
+          this.currentBailiff = fromBailiff;
+          phase = ARRIVE;
+          return DONE;
+        }
+        boolean departed = false;
         try {
-          debugMsg("Trying to migrate");
-
-          if (service != null) {
-            // Set migrating flag
-            this.migrating = true;
-            this.currentBailiff = service;
-            service.migrate(this, "topLevel", new Object[] {});
-            debugMsg("Has migrated");
-            return; // SUCCESS, we are done here
-          } else {
-            debugMsg("Service is null, migration failed");
-            throw new RemoteException("Service is null");
-          }
-        } catch (RemoteException rex) {
-          debugMsg(rex.toString());
-          badName = true;
-        } catch (NoSuchMethodException e) {
-          debugMsg(e.toString());
-          badName = true;
+          service.migrate(this, "topLevel", new Object[] {});
+          departed = true;
+          health.success(serviceName);
+        } finally {
+          endMigration(departed);
         }
+        debugMsg("Has migrated");
+        // A Bailiff in this JVM may have taken this very object, and
+        // then steps it again from the start
+        phase = ARRIVE;
+        return DONE; // SUCCESS, we are done here
+      } else {
+        debugMsg("Service is null, migration failed");
+        throw new RemoteException("Service is null");
+      }
+    } catch (RemoteException rex) {
+      traceFailure(rex);
+      if (debug)
+        debugMsg(rex.toString());
+      health.failure(serviceName);
+      badName = true;
+    } catch (NoSuchMethodException e) {
+      traceFailure(e);
+      if (debug)
+        debugMsg(e.toString());
+      badName = true;
+    } catch (BailiffOverloadedException e) {
+      // Not a bad Bailiff, just a full one: try another
+      health.success(serviceName);
+      debugMsg(e.getMessage());
+      overloaded.add(serviceName);
+    }
 
-        // If we come here the migrate failed. Check the state flags
-        // and take appropriate action.
-
-        if (noRegistry) {
-          debugMsg("No registry found - resetting name lists");
-          goodNames.clear();
-          badNames.clear();
-        } else if (badName) {
-          debugMsg(String.format("Bad service name found: %s", this.currentBailiff.toString()));
-          goodNames.remove(this.currentBailiff.toString());
-          badNames.add(this.currentBailiff.toString());
-        }
+    // If we come here the migrate failed and the player is still where
+    // it was. Check the state flags and take appropriate action.
 
-      } // while candidates remain
+    this.currentName = fromName;
+    this.currentBailiff = fromBailiff;
 
-      debugMsg("All Bailiffs failed.");
-    } // for ever
-  } // topLevel
+    if (noRegistry) {
+      debugMsg("No registry found - resetting name list");
+      goodNames.clear();
+    } else if (badName) {
+      if (debug)
+        debugMsg(String.format("Bad service name found: %s", serviceName));
+      BailiffDirectory.shared().invalidate(serviceName);
+      goodNames.remove(serviceName);
+    }
+
+    if (!goodNames.isEmpty())
+      return 0; // try another one
+    return allFailed();
+  } // hop
+
+  /**
+   * Ends a round of migration attempts: sleep a bit, then scan again.
+   */
+  private long allFailed() {
+    debugMsg("All Bailiffs failed.");
+    phase = SCAN;
+    return restraintSleepMs;
+  }
 
   // ================== Main Method
 
@@ -310,13 +564,14 @@ public class Player extends Dexter implements PlayerInterface {
    */
   protected static void showUsage() {
     String[] msg = {
-        "Usage: {?,-h,-help}|[-debug][-id string][-rs ms][-qs ms]",
+        "Usage: {?,-h,-help}|[-debug][-id string][-rs ms][-qs ms][-tag][-pt ms]",
         "? -h -help   Show this text",
         "-debug       Enable trace and diagnostic messages",
         "-id  string  Set the id string printed by debug messages",
         "-rs  ms      Set the restraint sleep in milliseconds",
         "-qs  ms      Set the lookup query retry delay",
         "-tag         Tag the player",
+        "-pt  ms      Set the load probe deadline in milliseconds",
     };
     for (String s : msg)
       System.out.println(s);
@@ -351,6 +606,8 @@ public class Player extends Dexter implements PlayerInterface {
             state = 3;
           else if (av.equals("-tag")) 
             dx.setTag();
+          else if (av.equals("-pt"))
+            state = 4;
           else {
             System.err.println("Unknown commandline argument: " + av);
             return;
@@ -372,6 +629,11 @@ public class Player extends Dexter implements PlayerInterface {
           state = 0;
           break;
 
+        case 4:
+          dx.setProbeDeadline(Long.parseLong(av));
+          state = 0;
+          break;
+
       } // switch
     } // for all commandline arguments
 
@@ -11,15 +11,27 @@ public interface PlayerInterface extends
     public String getName()
             throws java.rmi.RemoteException;
 
-    // Tag Player
+    // Tag Player. Fails at once, returning false, if the player is
+    // already it, migrating or departed
     public boolean tag()
             throws java.rmi.RemoteException;
+
+    // Pass the tag to the victim, if this player is resident and it
+    // and the victim accepts the tag. This player can not start
+    // migrating until the victim has answered.
+    public boolean passTag(PlayerInterface victim)
+            throws java.rmi.RemoteException;
+
+    // Mark a migrating or departed Player resident on arrival in a
+    // Bailiff; false if it was resident
+    public boolean arrive()
+            throws java.rmi.RemoteException;
    
     // Is Player Tagged
     public boolean isTagged()
         throws java.rmi.RemoteException;
 
-    // Is Player Migrating
+    // Is Player Migrating, or departed
     public boolean isMigrating()
         throws java.rmi.RemoteException;
 }
@@ -0,0 +1,398 @@
+// PlayerRegistry.java
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The PlayerRegistry maps the UUIDs of the players resident in a
+ * Bailiff to the local player objects. A player is registered when its
+ * Agitator is started and deregistered when the entry method returns
+ * or throws, so the registry only ever holds players that are present.
+ *
+ * Every arrival, departure and tag change advances the roster version
+ * and is remembered in a bounded change log, so that clients can ask
+ * for the changes since the version they last saw.
+ *
+ * The registry is safe for concurrent use. It is backed by a
+ * ConcurrentHashMap, which locks per hash bin, so concurrent arrivals
+ * and departures of different players do not contend, and queries
+ * iterate without blocking writers.
+ *
+ * Every arrival is also numbered, and indexed by its number in a
+ * ConcurrentSkipListMap. Roster pages are read from that index in
+ * order of arrival, so a page only needs to know the number of the
+ * last arrival it returned to continue where it ended, and the
+ * registry keeps no state between pages.
+ */
+public class PlayerRegistry {
+
+  /**
+   * A registry entry records a resident player and when it arrived.
+   */
+  public static final class Entry {
+    private final UUID uuid;
+    private final String name;
+    private final PlayerInterface player;
+    private final long arrivalTime;
+    private final long arrival; // the number of the arrival
+
+    Entry(UUID uuid, String name, PlayerInterface player, long arrival) {
+      this.uuid = uuid;
+      this.name = name;
+      this.player = player;
+      this.arrivalTime = System.currentTimeMillis();
+      this.arrival = arrival;
+    }
+
+    public UUID getUUID() {
+      return uuid;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public PlayerInterface getPlayer() {
+      return player;
+    }
+
+    /**
+     * Returns the time of arrival in milliseconds since the epoch.
+     */
+    public long getArrivalTime() {
+      return arrivalTime;
+    }
+
+    /**
+     * Returns the number of milliseconds the player has been resident.
+     */
+    public long getResidencyMillis() {
+      return System.currentTimeMillis() - arrivalTime;
+    }
+
+    /**
+     * Returns a summary of the current state of the player.
+     *
+     * @throws java.rmi.RemoteException Declared by PlayerInterface; not
+     *                                  thrown for local players.
+     */
+    public PlayerSummary summarize() throws java.rmi.RemoteException {
+      return new PlayerSummary(uuid, name, player.isTagged(),
+          player.isMigrating(), arrivalTime);
+    }
+
+    /**
+     * Returns a summary with the given state, without asking the player.
+     */
+    PlayerSummary summarize(boolean tagged, boolean migrating) {
+      return new PlayerSummary(uuid, name, tagged, migrating, arrivalTime);
+    }
+  }
+
+  // Resident players by UUID
+  private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+  // Resident players by the number of their arrival
+  private final ConcurrentSkipListMap<Long, Entry> byArrival =
+      new ConcurrentSkipListMap<>();
+
+  // The number of the latest arrival
+  private final AtomicLong arrivals = new AtomicLong();
+
+  // Serializes changes to the 'it' state of resident players
+  private final Object tagLock = new Object();
+
+  // The number of changes remembered for delta queries
+  private final int changeLogSize;
+
+  // The roster version and the most recent changes, guarded by changeLog
+  private final ArrayDeque<RosterChange> changeLog = new ArrayDeque<>();
+  private long version = 0;
+
+  // Told about every change, in version order, if not null
+  private volatile Consumer<RosterChange> changeListener = null;
+
+  /**
+   * Creates a registry that remembers the last 1024 roster changes.
+   */
+  public PlayerRegistry() {
+    this(1024);
+  }
+
+  /**
+   * Creates a registry.
+   *
+   * @param changeLogSize The number of roster changes remembered for
+   *                      delta queries.
+   */
+  public PlayerRegistry(int changeLogSize) {
+    if (changeLogSize < 1)
+      throw new IllegalArgumentException("Change log size must be positive: "
+          + changeLogSize);
+    this.changeLogSize = changeLogSize;
+  }
+
+  /**
+   * Registers a player that has just arrived and marks it resident, so
+   * it can be tagged from now on. If a player with the same UUID is
+   * already registered, for example because it migrated into the
+   * Bailiff it was already in, the new arrival replaces it.
+   *
+   * @param player The arriving player.
+   * @return The entry of the player, used to deregister it.
+   * @throws java.rmi.RemoteException Declared by PlayerInterface; not
+   *                                  thrown for local players.
+   */
+  public Entry register(PlayerInterface player)
+      throws java.rmi.RemoteException {
+    Entry e = new Entry(player.getUUID(), player.getName(), player,
+        arrivals.incrementAndGet());
+    player.arrive();
+    byArrival.put(e.arrival, e);
+    Entry replaced = entries.put(e.uuid, e);
+    if (replaced != null)
+      byArrival.remove(replaced.arrival, replaced);
+    record(RosterChange.Kind.ARRIVED, e.summarize());
+    return e;
+  }
+
+  /**
+   * Removes the entry from the registry, unless it has already been
+   * replaced by a newer arrival of the same player. The departure is
+   * recorded with the player's tag as it left, so that readers of the
+   * roster can tell when 'it' departs.
+   *
+   * @param e The entry returned by register.
+   * @return True if the entry was removed.
+   */
+  public boolean deregister(Entry e) {
+    if (!entries.remove(e.uuid, e))
+      return false;
+    byArrival.remove(e.arrival, e);
+    boolean tagged;
+    try {
+      tagged = e.player.isTagged();
+    } catch (java.rmi.RemoteException notLocal) {
+      tagged = false;
+    }
+    record(RosterChange.Kind.DEPARTED, e.summarize(tagged, true));
+    return true;
+  }
+
+  /**
+   * Tags the resident player with the given UUID.
+   *
+   * @param uuid The player to tag.
+   * @return True if the player is resident and accepted the tag; false
+   *         at once if it is it, migrating or departed.
+   * @throws java.rmi.RemoteException Declared by PlayerInterface; not
+   *                                  thrown for local players.
+   */
+  public boolean tag(UUID uuid) throws java.rmi.RemoteException {
+    synchronized (tagLock) {
+      Entry e = entries.get(uuid);
+      if (e == null || !e.player.tag())
+        return false;
+      record(RosterChange.Kind.TAGGED, e.summarize());
+      return true;
+    }
+  }
+
+  /**
+   * Passes the tag from the given player to another resident player
+   * that is neither 'it' nor migrating. The hand-off is done by the
+   * tagger's passTag, which keeps the tagger from starting to migrate
+   * until the victim has accepted or refused, and victims that started
+   * to migrate refuse at once. Selecting the victim, tagging it and
+   * untagging the tagger happen as one step with respect to all other
+   * tag operations on this registry.
+   *
+   * @param tagger The UUID of the player that is 'it'.
+   * @return The entry of the player that was tagged, or null if the
+   *         tagger is not resident and 'it', or no player was eligible.
+   * @throws java.rmi.RemoteException Declared by PlayerInterface; not
+   *                                  thrown for local players.
+   */
+  public Entry transferTag(UUID tagger) throws java.rmi.RemoteException {
+    synchronized (tagLock) {
+      Entry from = entries.get(tagger);
+      if (from == null || !from.player.isTagged())
+        return null;
+      for (Entry e : entries.values()) {
+        if (e == from || e.player.isTagged() || e.player.isMigrating())
+          continue;
+        if (from.player.passTag(e.player)) {
+          record(RosterChange.Kind.UNTAGGED, from.summarize());
+          record(RosterChange.Kind.TAGGED, e.summarize());
+          return e;
+        }
+        if (!from.player.isTagged() || from.player.isMigrating())
+          return null; // the tagger itself has left
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns the current roster version. The version starts at zero and
+   * increases by one for every change.
+   */
+  public long getVersion() {
+    synchronized (changeLog) {
+      return version;
+    }
+  }
+
+  /**
+   * Returns the changes made after the given version. If the change
+   * log no longer reaches back to that version, or the version is from
+   * the future (as after a restart of the Bailiff), a snapshot of the
+   * full roster is returned instead.
+   *
+   * @param since The latest version the caller knows of.
+   * @throws java.rmi.RemoteException Declared by PlayerInterface; not
+   *                                  thrown for local players.
+   */
+  public RosterDelta changesSince(long since)
+      throws java.rmi.RemoteException {
+    long now;
+
+    synchronized (changeLog) {
+      now = version;
+      long oldest = changeLog.isEmpty() ? now + 1 : changeLog.peekFirst().getVersion();
+      if (since <= now && oldest <= since + 1) {
+        RosterChange[] changes = new RosterChange[(int) (now - since)];
+        int i = changes.length;
+        Iterator<RosterChange> it = changeLog.descendingIterator();
+        while (0 < i)
+          changes[--i] = it.next();
+        return RosterDelta.ofChanges(since, now, changes);
+      }
+    }
+
+    // Too far behind: the snapshot is taken after reading the version,
+    // so it includes at least every change up to that version.
+
+    List<PlayerSummary> roster = new ArrayList<>(entries.size());
+    for (Entry e : entries.values())
+      roster.add(e.summarize());
+    return RosterDelta.ofSnapshot(since, now,
+        roster.toArray(new PlayerSummary[roster.size()]));
+  }
+
+  /**
+   * Returns a page of the roster: the next players, in order of
+   * arrival, that pass the query's filter. The first page fixes the
+   * snapshot: the roster version and the latest arrival at that time.
+   * The following pages only return players that arrived up to then
+   * and are still resident. At most 16 players are looked at for every
+   * player the page may hold, so a selective filter may give a short,
+   * or even empty, page that is not the last. The memory and time
+   * taken by a page do not grow with the roster.
+   *
+   * @param query   The filter, page size and cursor.
+   * @param maxSize The largest page returned, whatever the query asks.
+   * @throws java.rmi.RemoteException Declared by PlayerInterface; not
+   *                                  thrown for local players.
+   */
+  public RosterPage page(RosterQuery query, int maxSize)
+      throws java.rmi.RemoteException {
+    long snapshot = query.getVersion();
+    long last = query.getLast();
+    if (query.isFirst()) {
+      // The version is read first, so the snapshot includes at least
+      // every arrival up to that version
+      snapshot = getVersion();
+      last = arrivals.get();
+    }
+
+    long after = query.getAfter();
+    if (last <= after)
+      return new RosterPage(snapshot, new PlayerSummary[0], null);
+
+    int size = Math.max(1, Math.min(query.getPageSize(), maxSize));
+    List<PlayerSummary> page = new ArrayList<>(Math.min(size, 256));
+    Iterator<Entry> it = byArrival.subMap(after, false, last, true)
+        .values().iterator();
+    long budget = 16L * size;
+    while (page.size() < size && 0 < budget-- && it.hasNext()) {
+      Entry e = it.next();
+      after = e.arrival;
+      PlayerSummary s = e.summarize();
+      if (query.matches(s.getName(), s.isTagged(), s.isMigrating()))
+        page.add(s);
+    }
+
+    return new RosterPage(snapshot, page.toArray(new PlayerSummary[page.size()]),
+        it.hasNext() ? query.next(snapshot, last, after) : null);
+  }
+
+  /**
+   * Sets the consumer that is told about every roster change. It is
+   * called while the change log is locked, so it must not block.
+   */
+  public void setChangeListener(Consumer<RosterChange> listener) {
+    changeListener = listener;
+  }
+
+  /**
+   * Appends a change to the change log and advances the version.
+   */
+  private void record(RosterChange.Kind kind, PlayerSummary player) {
+    synchronized (changeLog) {
+      RosterChange change = new RosterChange(++version, kind, player);
+      changeLog.addLast(change);
+      if (changeLogSize < changeLog.size())
+        changeLog.removeFirst();
+      Consumer<RosterChange> listener = changeListener;
+      if (listener != null)
+        listener.accept(change);
+    }
+  }
+
+  /**
+   * Returns the entry of the player with the given UUID, or null if the
+   * player is not resident.
+   */
+  public Entry get(UUID uuid) {
+    return entries.get(uuid);
+  }
+
+  /**
+   * Returns true if a resident player is 'it'.
+   *
+   * @throws java.rmi.RemoteException Declared by PlayerInterface; not
+   *                                  thrown for local players.
+   */
+  public boolean containsTagged() throws java.rmi.RemoteException {
+    for (Entry e : entries.values()) {
+      if (e.player.isTagged())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of resident players.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns a weakly consistent, unmodifiable view of the entries of
+   * the resident players.
+   */
+  public Collection<Entry> entries() {
+    return Collections.unmodifiableCollection(entries.values());
+  }
+}
@@ -0,0 +1,66 @@
+// PlayerSummary.java
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A PlayerSummary is an immutable snapshot of the state of one player
+ * resident in a Bailiff. Rosters are returned to clients as arrays of
+ * summaries, so that a roster query ships a few fields per player
+ * instead of serializing each player object in full.
+ */
+public final class PlayerSummary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final UUID uuid;
+  private final String name;
+  private final boolean tagged;
+  private final boolean migrating;
+  private final long arrivalTime;
+
+  /**
+   * Creates a new summary.
+   *
+   * @param uuid        The UUID of the player.
+   * @param name        The name of the player.
+   * @param tagged      True if the player is 'it'.
+   * @param migrating   True if the player is leaving the Bailiff.
+   * @param arrivalTime When the player arrived, in milliseconds since
+   *                    the epoch.
+   */
+  public PlayerSummary(UUID uuid, String name, boolean tagged,
+      boolean migrating, long arrivalTime) {
+    this.uuid = uuid;
+    this.name = name;
+    this.tagged = tagged;
+    this.migrating = migrating;
+    this.arrivalTime = arrivalTime;
+  }
+
+  public UUID getUUID() {
+    return uuid;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isTagged() {
+    return tagged;
+  }
+
+  public boolean isMigrating() {
+    return migrating;
+  }
+
+  public long getArrivalTime() {
+    return arrivalTime;
+  }
+
+  public String toString() {
+    return String.format("%s[%s]%s%s", name, uuid,
+        tagged ? " it" : "",
+        migrating ? " migrating" : "");
+  }
+}
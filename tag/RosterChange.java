@@ -0,0 +1,47 @@
+// RosterChange.java
+
+import java.io.Serializable;
+
+/**
+ * A RosterChange records one change to the roster of a Bailiff: a
+ * player arrived, departed, was tagged or passed its tag on. Every
+ * change carries the roster version it produced and a summary of the
+ * player as it was when the change was made.
+ */
+public final class RosterChange implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The kinds of roster change.
+   */
+  public enum Kind {
+    ARRIVED, DEPARTED, TAGGED, UNTAGGED
+  }
+
+  private final long version;
+  private final Kind kind;
+  private final PlayerSummary player;
+
+  public RosterChange(long version, Kind kind, PlayerSummary player) {
+    this.version = version;
+    this.kind = kind;
+    this.player = player;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public PlayerSummary getPlayer() {
+    return player;
+  }
+
+  public String toString() {
+    return String.format("%d %s %s", version, kind, player);
+  }
+}
@@ -0,0 +1,86 @@
+// RosterDelta.java
+
+import java.io.Serializable;
+
+/**
+ * A RosterDelta is the answer to a roster query by version. It holds
+ * either the changes made since the version the caller already knows,
+ * or, if the Bailiff no longer remembers that far back, a snapshot of
+ * the full roster.
+ *
+ * A snapshot reflects at least every change up to the delta's
+ * toVersion, and possibly a few later ones. Clients should therefore
+ * apply changes idempotently: an arrival of a known player replaces
+ * it, and the departure of an unknown player is ignored.
+ */
+public final class RosterDelta implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long fromVersion;
+  private final long toVersion;
+  private final PlayerSummary[] snapshot;
+  private final RosterChange[] changes;
+
+  /**
+   * Creates a delta holding the changes since fromVersion.
+   */
+  public static RosterDelta ofChanges(long fromVersion, long toVersion,
+      RosterChange[] changes) {
+    return new RosterDelta(fromVersion, toVersion, null, changes);
+  }
+
+  /**
+   * Creates a delta holding a snapshot of the full roster.
+   */
+  public static RosterDelta ofSnapshot(long fromVersion, long toVersion,
+      PlayerSummary[] snapshot) {
+    return new RosterDelta(fromVersion, toVersion, snapshot,
+        new RosterChange[0]);
+  }
+
+  private RosterDelta(long fromVersion, long toVersion,
+      PlayerSummary[] snapshot, RosterChange[] changes) {
+    this.fromVersion = fromVersion;
+    this.toVersion = toVersion;
+    this.snapshot = snapshot;
+    this.changes = changes;
+  }
+
+  /**
+   * Returns the version the caller asked for.
+   */
+  public long getFromVersion() {
+    return fromVersion;
+  }
+
+  /**
+   * Returns the version to pass in the next query.
+   */
+  public long getToVersion() {
+    return toVersion;
+  }
+
+  /**
+   * Returns true if this delta holds a full snapshot that replaces
+   * whatever the caller knew before.
+   */
+  public boolean isSnapshot() {
+    return snapshot != null;
+  }
+
+  /**
+   * Returns the full roster, or null if this delta holds changes.
+   */
+  public PlayerSummary[] getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Returns the changes in version order. Empty for a snapshot, or if
+   * nothing changed.
+   */
+  public RosterChange[] getChanges() {
+    return changes;
+  }
+}
@@ -0,0 +1,67 @@
+// RosterPage.java
+
+import java.io.Serializable;
+
+/**
+ * A RosterPage is the answer to a RosterQuery: the next players of the
+ * roster that pass the query's filter, and the query for the page
+ * after them.
+ *
+ * The pages of one iteration are taken from the same snapshot: the
+ * players resident when the first page was asked for, in order of
+ * arrival. A player that stays resident is returned exactly once. A
+ * player that departs before its page is read is left out, and players
+ * that arrive after the first page are not returned at all; to keep up
+ * with them, pass the version of the pages to getRosterSince.
+ */
+public final class RosterPage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long version;
+  private final PlayerSummary[] players;
+  private final RosterQuery next;
+
+  /**
+   * Creates a new page.
+   *
+   * @param version The roster version of the snapshot.
+   * @param players The players in the page.
+   * @param next    The query for the next page, or null if this is the
+   *                last page.
+   */
+  public RosterPage(long version, PlayerSummary[] players, RosterQuery next) {
+    this.version = version;
+    this.players = players;
+    this.next = next;
+  }
+
+  /**
+   * Returns the roster version when the first page was read. The pages
+   * reflect at least every change up to this version, and possibly a
+   * few later ones, as a snapshot in a RosterDelta does.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public PlayerSummary[] getPlayers() {
+    return players;
+  }
+
+  /**
+   * Returns the query for the next page, or null if this is the last.
+   */
+  public RosterQuery getNext() {
+    return next;
+  }
+
+  public boolean isLast() {
+    return next == null;
+  }
+
+  public String toString() {
+    return String.format("RosterPage(v%d players=%d%s)", version,
+        players.length, isLast() ? " last" : "");
+  }
+}
@@ -0,0 +1,125 @@
+// RosterQuery.java
+
+import java.io.Serializable;
+
+/**
+ * A RosterQuery asks a Bailiff for one page of its roster, see
+ * BailiffInterface.getRosterPage. It holds a filter, evaluated by the
+ * Bailiff, the largest number of players wanted in the page, and a
+ * cursor that tells where the previous page ended.
+ *
+ * A new query starts at the beginning of the roster. Every page returns
+ * the query for the page after it, with the same filter and page size,
+ * so a client reads the whole roster with:
+ *
+ *   for (RosterQuery q = new RosterQuery(500, true, true, null); q != null;) {
+ *     RosterPage page = bailiff.getRosterPage(q);
+ *     ...
+ *     q = page.getNext();
+ *   }
+ */
+public final class RosterQuery implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int pageSize;
+  private final boolean untaggedOnly;
+  private final boolean notMigrating;
+  private final String namePrefix;
+
+  // The cursor: the roster version and the last arrival in the
+  // snapshot, and the last arrival already returned. Zero in a new query.
+  private final long version;
+  private final long last;
+  private final long after;
+
+  /**
+   * Creates a query for the first page.
+   *
+   * @param pageSize     The largest number of players in a page. The
+   *                     Bailiff may return fewer.
+   * @param untaggedOnly True to leave out the player that is 'it'.
+   * @param notMigrating True to leave out players that have started to
+   *                     migrate.
+   * @param namePrefix   Only players whose name starts with this are
+   *                     returned; null or empty for all players.
+   */
+  public RosterQuery(int pageSize, boolean untaggedOnly, boolean notMigrating,
+      String namePrefix) {
+    this(pageSize, untaggedOnly, notMigrating, namePrefix, 0, 0, 0);
+  }
+
+  RosterQuery(int pageSize, boolean untaggedOnly, boolean notMigrating,
+      String namePrefix, long version, long last, long after) {
+    if (pageSize < 1)
+      throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+    this.pageSize = pageSize;
+    this.untaggedOnly = untaggedOnly;
+    this.notMigrating = notMigrating;
+    this.namePrefix = (namePrefix != null && !namePrefix.isEmpty()) ? namePrefix : null;
+    this.version = version;
+    this.last = last;
+    this.after = after;
+  }
+
+  /**
+   * Returns the query for the page after the given arrival, in the same
+   * snapshot.
+   */
+  RosterQuery next(long version, long last, long after) {
+    return new RosterQuery(pageSize, untaggedOnly, notMigrating, namePrefix,
+        version, last, after);
+  }
+
+  /**
+   * Returns true if the player passes the filter.
+   */
+  public boolean matches(String name, boolean tagged, boolean migrating) {
+    if (untaggedOnly && tagged)
+      return false;
+    if (notMigrating && migrating)
+      return false;
+    return namePrefix == null || (name != null && name.startsWith(namePrefix));
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public boolean isUntaggedOnly() {
+    return untaggedOnly;
+  }
+
+  public boolean isNotMigrating() {
+    return notMigrating;
+  }
+
+  public String getNamePrefix() {
+    return namePrefix;
+  }
+
+  /**
+   * Returns true if this query is for the first page.
+   */
+  public boolean isFirst() {
+    return last == 0;
+  }
+
+  long getVersion() {
+    return version;
+  }
+
+  long getLast() {
+    return last;
+  }
+
+  long getAfter() {
+    return after;
+  }
+
+  public String toString() {
+    return String.format("RosterQuery(size=%d%s%s%s after=%d/%d)", pageSize,
+        untaggedOnly ? " untagged" : "", notMigrating ? " resident" : "",
+        (namePrefix != null) ? " prefix=" + namePrefix : "", after, last);
+  }
+}
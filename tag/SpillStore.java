@@ -0,0 +1,195 @@
+// SpillStore.java
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The SpillStore keeps byte records in a memory-mapped file, outside
+ * the Java heap. The Bailiff uses it to hold the serialized state of
+ * passivated agents until they wake up.
+ *
+ * Space is handed out in blocks of a power-of-two number of 64-byte
+ * granules. Freed blocks go on a free list per block size, and put
+ * takes a block from the matching list before it takes fresh space
+ * from the end of the file. Agents of one class have states of about
+ * the same size, so blocks are reused without coalescing.
+ *
+ * A record is named by a handle, which holds the offset and length of
+ * the record. Allocation is synchronized; copying into and out of the
+ * mapping is not, so concurrent puts and takes only contend briefly.
+ *
+ * The operating system pages the mapping in and out as needed, so the
+ * file can be much larger than the memory it occupies.
+ *
+ * Closing the store deletes the file and drops the mapping, which the
+ * JVM unmaps when it is collected. Copies still in progress finish on
+ * the mapping they started with.
+ */
+public final class SpillStore {
+
+  private static final int GRANULE_SHIFT = 6; // 64 bytes
+  private static final int CLASSES = 32;
+
+  private final File file;
+  private volatile MappedByteBuffer map; // null when closed
+  private final int capacity;
+
+  // The first granule never handed out
+  private int top = 0; // guarded by this
+
+  // The free blocks of every size class, as stacks of granule offsets
+  private final int[][] free = new int[CLASSES][]; // guarded by this
+  private final int[] freeCount = new int[CLASSES]; // guarded by this
+
+  private int records = 0; // guarded by this
+  private long usedBytes = 0; // guarded by this
+
+  /**
+   * Creates a store in the given file, which is created or truncated
+   * and deleted when the JVM exits.
+   *
+   * @param file     The spill file.
+   * @param capacity The size of the file in bytes, at most 2 GB.
+   * @throws IOException Thrown if the file can not be created or mapped.
+   */
+  public SpillStore(File file, long capacity) throws IOException {
+    if (capacity < (1 << GRANULE_SHIFT) || Integer.MAX_VALUE < capacity)
+      throw new IllegalArgumentException("Spill capacity out of range: " + capacity);
+    this.file = file;
+    this.capacity = (int) capacity & ~((1 << GRANULE_SHIFT) - 1);
+    file.deleteOnExit();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      raf.setLength(this.capacity);
+      map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+    }
+  }
+
+  /**
+   * Creates a store in a new temporary file.
+   */
+  public static SpillStore createTemp(String prefix, long capacity)
+      throws IOException {
+    return new SpillStore(File.createTempFile(prefix, ".spill"), capacity);
+  }
+
+  /**
+   * Stores a record.
+   *
+   * @param data The bytes of the record.
+   * @return The handle of the record, or -1 if the store is full or
+   *         closed.
+   */
+  public long put(byte[] data) {
+    int k = sizeClass(data.length);
+    int granule;
+    MappedByteBuffer m = map;
+    if (m == null)
+      return -1;
+
+    synchronized (this) {
+      if (0 < freeCount[k]) {
+        granule = free[k][--freeCount[k]];
+      } else {
+        int granules = 1 << k;
+        if ((capacity >>> GRANULE_SHIFT) - top < granules)
+          return -1;
+        granule = top;
+        top += granules;
+      }
+      records++;
+      usedBytes += 1L << (k + GRANULE_SHIFT);
+    }
+
+    ByteBuffer b = m.duplicate();
+    b.position(granule << GRANULE_SHIFT);
+    b.put(data);
+    return ((long) granule << 32) | data.length;
+  }
+
+  /**
+   * Returns a record and frees its space. The handle is no longer valid
+   * afterwards.
+   *
+   * @param handle A handle returned by put.
+   * @throws IllegalStateException Thrown if the store is closed.
+   */
+  public byte[] take(long handle) {
+    int granule = (int) (handle >>> 32);
+    int length = (int) handle;
+    MappedByteBuffer m = map;
+    if (m == null)
+      throw new IllegalStateException(this + " is closed");
+    byte[] data = new byte[length];
+
+    ByteBuffer b = m.duplicate();
+    b.position(granule << GRANULE_SHIFT);
+    b.get(data);
+
+    int k = sizeClass(length);
+    synchronized (this) {
+      if (free[k] == null)
+        free[k] = new int[16];
+      else if (freeCount[k] == free[k].length)
+        free[k] = Arrays.copyOf(free[k], 2 * free[k].length);
+      free[k][freeCount[k]++] = granule;
+      records--;
+      usedBytes -= 1L << (k + GRANULE_SHIFT);
+    }
+    return data;
+  }
+
+  /**
+   * Returns the size class of a record: the base 2 logarithm of the
+   * number of granules in its block.
+   */
+  private static int sizeClass(int length) {
+    int granules = Math.max(1, (length + (1 << GRANULE_SHIFT) - 1) >>> GRANULE_SHIFT);
+    return 32 - Integer.numberOfLeadingZeros(granules - 1);
+  }
+
+  /**
+   * Deletes the spill file and drops the mapping. The records in the
+   * store are lost.
+   */
+  public void close() {
+    map = null;
+    if (!file.delete() && file.exists())
+      file.deleteOnExit();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the size of the spill file in bytes.
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of records stored.
+   */
+  public synchronized int getRecords() {
+    return records;
+  }
+
+  /**
+   * Returns the bytes in blocks holding records, including the unused
+   * ends of the blocks.
+   */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public String toString() {
+    return String.format("SpillStore(%s, %d bytes)", file, capacity);
+  }
+}
@@ -0,0 +1,116 @@
+// StepScheduler.java
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The StepScheduler runs the steps of SteppedAgents on a small pool of
+ * timer threads. Between its steps an agent is only a task in the
+ * timer's queue, so the number of threads does not grow with the number
+ * of resident agents, and a Bailiff can host many agents that mostly
+ * wait.
+ *
+ * A step that makes remote calls holds its thread until the calls
+ * return, so the pool should be somewhat larger than the number of
+ * processors when agents make many calls.
+ */
+public final class StepScheduler {
+
+  private final ScheduledThreadPoolExecutor timer;
+
+  // The number of agents being stepped, and of steps run
+  private final AtomicInteger agents = new AtomicInteger();
+  private final LongAdder steps = new LongAdder();
+
+  /**
+   * Creates a scheduler.
+   *
+   * @param name    The name prefix of the timer threads.
+   * @param threads The number of timer threads.
+   * @throws IllegalArgumentException Thrown if threads is not positive.
+   */
+  public StepScheduler(String name, int threads) {
+    if (threads < 1)
+      throw new IllegalArgumentException("Step threads must be positive: "
+          + threads);
+    timer = new ScheduledThreadPoolExecutor(threads,
+        AgentEngine.daemonThreads(name));
+  }
+
+  /**
+   * Starts stepping an agent. The first step runs as soon as possible.
+   *
+   * @param step Runs one step of the agent and returns the milliseconds
+   *             until the next step, or a negative number when the
+   *             agent has ended.
+   * @throws RejectedExecutionException Thrown if the scheduler has been
+   *                                    shut down.
+   */
+  public void start(LongSupplier step) {
+    agents.incrementAndGet();
+    try {
+      timer.execute(new Stepper(step));
+    } catch (RejectedExecutionException e) {
+      agents.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the number of agents being stepped.
+   */
+  public int getAgents() {
+    return agents.get();
+  }
+
+  /**
+   * Returns the number of steps run.
+   */
+  public long getSteps() {
+    return steps.sum();
+  }
+
+  /**
+   * Stops running steps. Agents waiting for their next step are dropped.
+   */
+  public void shutdown() {
+    timer.shutdownNow();
+  }
+
+  public String toString() {
+    return String.format("StepScheduler(threads=%d agents=%d)",
+        timer.getCorePoolSize(), getAgents());
+  }
+
+  /**
+   * Runs the steps of one agent, scheduling itself again after each.
+   */
+  private final class Stepper implements Runnable {
+    private final LongSupplier step;
+
+    Stepper(LongSupplier step) {
+      this.step = step;
+    }
+
+    public void run() {
+      steps.increment();
+      long next = step.getAsLong();
+      if (next < 0) {
+        agents.decrementAndGet();
+        return;
+      }
+      try {
+        if (next == 0)
+          timer.execute(this);
+        else
+          timer.schedule(this, next, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        agents.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+// SteppedAgent.java
+
+/**
+ * A SteppedAgent is written as a sequence of short steps instead of one
+ * long entry method. Where an ordinary agent sleeps in its entry method,
+ * a SteppedAgent returns from its step and tells the Bailiff how long
+ * to wait before the next step. The agent remembers in its own fields
+ * where the next step starts.
+ *
+ * A Bailiff that has started stepping runs SteppedAgents on the few
+ * threads of its StepScheduler, so an agent that is waiting holds no
+ * thread at all. The entry method named in migrate is then resolved
+ * but not called; the first step takes its place. A Bailiff that has
+ * not started stepping calls the entry method as usual, and the agent
+ * can drive its own steps from there, sleeping between them.
+ *
+ * Dexter and Player are SteppedAgents, and their topLevel methods run
+ * the same steps on the thread lent to them.
+ */
+public interface SteppedAgent {
+
+    /**
+     * Returned by step when the agent has ended, for example because it
+     * has migrated to another Bailiff.
+     */
+    public static final long DONE = -1;
+
+    /**
+     * Runs the next step of the agent. A step should not sleep; it may
+     * make remote calls.
+     *
+     * @return The number of milliseconds until the next step, 0 to run
+     *         it as soon as possible, or DONE.
+     * @exception Exception An exception ends the agent.
+     */
+    public long step()
+            throws Exception;
+}
@@ -0,0 +1,515 @@
+// TagSoak.java
+
+import java.io.File;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TagSoak plays the game of Tag on one machine for a fixed time and
+ * reports how the Bailiffs and Players behaved. It starts an
+ * rmiregistry, in this JVM or as a separate process, a number of
+ * Bailiffs in this JVM, and migrates a number of Players into them.
+ * One of the Players starts as 'it'.
+ *
+ *   > java TagSoak -bailiffs 5 -players 1000 -rs 200 -time 60
+ *
+ * At the end of the run it reports:
+ *
+ * hops         Migrations accepted by the Bailiffs, per second.
+ *
+ * tag latency  Percentiles of the time a player holds the tag before it
+ *              is passed on, from the roster changes the Bailiffs send
+ *              to a listener subscribed by the harness.
+ *
+ * calls/tag    The number of remote Bailiff operations per tag passed,
+ *              not counting the gossip between the Bailiffs.
+ *
+ * gossip       The gossip calls between the Bailiffs, per second. They
+ *              are made every round whether players move or not.
+ *
+ * lost, dup    How often no player, or more than one player, was 'it'
+ *              for longer than the grace period. The 'it' players are
+ *              sampled in all Bailiffs; the two copies of a migrating
+ *              player count as one.
+ *
+ * The seed decides the initial Bailiff of every player and which player
+ * starts as 'it', so two runs with the same options and seed start from
+ * the same configuration. The course of the game still depends on
+ * thread scheduling and on the random choices of the players.
+ *
+ * The exit status is 2 if a tag was lost or duplicated, else 0.
+ */
+public class TagSoak {
+
+  // Soak configuration, set from the commandline
+  private int bailiffCount = 3;
+  private int playerCount = 10;
+  private long restraintSleep = 1000;
+  private long retrySleep = 1000;
+  private long probeDeadline = 1000;
+  private long seconds = 30;
+  private long seed = 1;
+  private String engineName = "legacy";
+  private boolean forkRegistry = false;
+  private boolean nio = false;
+  private int stepThreads = 0;
+  private boolean rooms = false;
+  private long sampleMs = 50;
+  private long graceMs = 1000;
+  private long reportMs = 10_000;
+
+  // The Bailiffs under test and their stubs
+  private final List<Bailiff> bailiffs = new ArrayList<>();
+  private final List<BailiffInterface> stubs = new ArrayList<>();
+
+  // The forked rmiregistry, if any
+  private Process registry = null;
+
+  // Tag hand-over times, from the roster listener
+  private final Object tagLock = new Object();
+  private final List<Long> tagLatencies = new ArrayList<>(); // guarded by tagLock
+  private long lastTagNs; // guarded by tagLock
+
+  // Counts of 'it' incidents, from the sampler
+  private int lostCount = 0;
+  private int dupCount = 0;
+  private int maxIt = 0;
+
+  /* ================ L i s t e n e r ================ */
+
+  /**
+   * Receives roster changes from all Bailiffs and records the time
+   * between successive tag transfers.
+   */
+  private class TagListener implements BailiffListener {
+    public void rosterChanged(String source, RosterChange[] changes) {
+      long now = System.nanoTime();
+      for (RosterChange c : changes) {
+        if (c.getKind() == RosterChange.Kind.TAGGED) {
+          synchronized (tagLock) {
+            tagLatencies.add(now - lastTagNs);
+            lastTagNs = now;
+          }
+        }
+      }
+    }
+  }
+
+  /* ================ S a m p l i n g ================ */
+
+  /**
+   * Returns the number of distinct players that are 'it' in all
+   * Bailiffs. Players that have arrived but wait in an admission queue
+   * are included. The queues are read before the registries, so that a
+   * player moving from one to the other is seen at least once.
+   */
+  private int countIt() {
+    Set<UUID> it = new HashSet<>();
+    for (Bailiff bf : bailiffs) {
+      for (Bailiff.Agitator agt : bf.admissions) {
+        if (agt.myObj instanceof PlayerInterface)
+          addIfTagged(it, (PlayerInterface) agt.myObj);
+      }
+      for (PlayerRegistry.Entry e : bf.players.entries())
+        addIfTagged(it, e.getPlayer());
+    }
+    return it.size();
+  }
+
+  private static void addIfTagged(Set<UUID> it, PlayerInterface p) {
+    try {
+      if (p.isTagged())
+        it.add(p.getUUID());
+    } catch (RemoteException e) {
+      // Not thrown for local players
+    }
+  }
+
+  /**
+   * Returns the total number of timed remote operations of all
+   * Bailiffs, except gossip.
+   */
+  private long countCalls() {
+    long n = 0;
+    for (Bailiff bf : bailiffs)
+      for (BailiffMetrics.Op op : BailiffMetrics.Op.values())
+        if (op != BailiffMetrics.Op.GOSSIP)
+          n += bf.metrics.getLatency(op).getCount();
+    return n;
+  }
+
+  /**
+   * Returns the total number of gossip calls received by all Bailiffs.
+   */
+  private long countGossip() {
+    long n = 0;
+    for (Bailiff bf : bailiffs)
+      n += bf.metrics.getLatency(BailiffMetrics.Op.GOSSIP).getCount();
+    return n;
+  }
+
+  /**
+   * Returns the total number of migrations accepted by all Bailiffs.
+   */
+  private long countHops() {
+    long n = 0;
+    for (Bailiff bf : bailiffs)
+      n += bf.metrics.getMigrationsAccepted();
+    return n;
+  }
+
+  private int countTags() {
+    synchronized (tagLock) {
+      return tagLatencies.size();
+    }
+  }
+
+  /* ================ S e t u p ================ */
+
+  /**
+   * Starts the rmiregistry, in this JVM or as a child process.
+   */
+  private void startRegistry() throws Exception {
+    if (!forkRegistry) {
+      try {
+        LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+      } catch (ExportException e) {
+        // An rmiregistry is already running
+      }
+      return;
+    }
+
+    // The forked rmiregistry needs the interfaces to unmarshal stubs
+
+    String exe = System.getProperty("java.home") + File.separator + "bin"
+        + File.separator + "rmiregistry";
+    ProcessBuilder pb = new ProcessBuilder(exe);
+    pb.environment().put("CLASSPATH", System.getProperty("java.class.path"));
+    pb.inheritIO();
+    registry = pb.start();
+
+    Registry r = LocateRegistry.getRegistry();
+    for (int i = 0;; i++) {
+      try {
+        r.list();
+        return;
+      } catch (RemoteException e) {
+        if (50 <= i || !registry.isAlive())
+          throw e;
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /**
+   * Starts the Bailiffs and subscribes the tag listener to them.
+   */
+  private void startBailiffs() throws Exception {
+    Logger log = Logger.getAnonymousLogger();
+    log.setLevel(Level.WARNING);
+
+    TagListener listener = new TagListener();
+    BailiffListener listenerStub =
+        (BailiffListener) UnicastRemoteObject.exportObject(listener, 0);
+
+    BailiffRuntime runtime = rooms ? new BailiffRuntime(log,
+        AgentEngine.create(engineName, playerCount), 0, null) : null;
+
+    for (int i = 0; i < bailiffCount; i++) {
+      Bailiff bf = rooms ? runtime.addRoom("soak-" + i, "TagSoak")
+          : new Bailiff("soak-" + i, "TagSoak", log,
+              AgentEngine.create(engineName, playerCount));
+      if (nio)
+        bf.startNio(0);
+      if (0 < stepThreads)
+        bf.startStepping(stepThreads);
+      BailiffInterface stub = BailiffDirectory.shared().lookup(bf.serviceName);
+      stub.subscribe(listenerStub);
+      bailiffs.add(bf);
+      stubs.add(stub);
+    }
+  }
+
+  /**
+   * Migrates the players into randomly chosen Bailiffs. The first
+   * player is 'it'.
+   */
+  private void launchPlayers(Random rnd) throws Exception {
+    for (int i = 0; i < playerCount; i++) {
+      Player p = new Player();
+      p.setId("player-" + i);
+      p.setRestraintSleep(restraintSleep);
+      p.setRetrySleep(retrySleep);
+      p.setProbeDeadline(probeDeadline);
+      if (i == 0)
+        p.setTag();
+      stubs.get(rnd.nextInt(stubs.size())).migrate(p, "topLevel",
+          new Object[] {});
+    }
+  }
+
+  private void shutdown() {
+    for (Bailiff bf : bailiffs)
+      bf.unbind();
+    if (registry != null)
+      registry.destroy();
+  }
+
+  /* ================ R u n ================ */
+
+  /**
+   * Plays the game for the configured time and prints the report.
+   *
+   * @return True if the tag was never lost or duplicated.
+   */
+  private boolean run() throws Exception {
+    Random rnd = new Random(seed);
+
+    System.out.printf("TagSoak seed=%d bailiffs=%d players=%d rs=%d qs=%d"
+        + " pt=%d engine=%s time=%ds%n",
+        seed, bailiffCount, playerCount, restraintSleep, retrySleep,
+        probeDeadline, engineName, seconds);
+
+    startRegistry();
+    try {
+      startBailiffs();
+
+      synchronized (tagLock) {
+        lastTagNs = System.nanoTime();
+      }
+
+      launchPlayers(rnd);
+
+      long hops0 = countHops();
+      long calls0 = countCalls();
+      long gossip0 = countGossip();
+      long t0 = System.nanoTime();
+      long end = t0 + TimeUnit.SECONDS.toNanos(seconds);
+      long nextReport = t0 + TimeUnit.MILLISECONDS.toNanos(reportMs);
+
+      // Sample the 'it' players until the time is up. An anomaly is an
+      // incident once it has lasted for the grace period.
+
+      int kind = 1; // 0 lost, 1 one player is 'it', 2 duplicated
+      long since = t0;
+      boolean counted = false;
+
+      for (long now = t0; now < end; now = System.nanoTime()) {
+        int it = countIt();
+        maxIt = Math.max(maxIt, it);
+
+        int k = Math.min(it, 2);
+        if (k != kind) {
+          kind = k;
+          since = now;
+          counted = false;
+        }
+        if (kind != 1 && !counted
+            && TimeUnit.MILLISECONDS.toNanos(graceMs) <= now - since) {
+          counted = true;
+          if (kind == 0)
+            lostCount++;
+          else
+            dupCount++;
+          System.out.printf("%6.1fs %s tag: %d players are 'it'%n",
+              (now - t0) / 1e9, kind == 0 ? "LOST" : "DUPLICATED", it);
+        }
+
+        if (nextReport <= now) {
+          nextReport += TimeUnit.MILLISECONDS.toNanos(reportMs);
+          System.out.printf("%6.1fs hops=%d tags=%d it=%d%n",
+              (now - t0) / 1e9, countHops() - hops0, countTags(), it);
+        }
+
+        Thread.sleep(sampleMs);
+      }
+
+      double elapsed = (System.nanoTime() - t0) / 1e9;
+      long hops = countHops() - hops0;
+      long calls = countCalls() - calls0;
+      long gossip = countGossip() - gossip0;
+      report(elapsed, hops, calls, gossip);
+    } finally {
+      shutdown();
+    }
+
+    return lostCount == 0 && dupCount == 0;
+  }
+
+  private void report(double elapsed, long hops, long calls, long gossip) {
+    long[] lat;
+    synchronized (tagLock) {
+      lat = new long[tagLatencies.size()];
+      for (int i = 0; i < lat.length; i++)
+        lat[i] = tagLatencies.get(i);
+    }
+    Arrays.sort(lat);
+
+    System.out.printf("elapsed      %.1f s%n", elapsed);
+    System.out.printf("hops         %d (%.1f/s)%n", hops, hops / elapsed);
+    System.out.printf("tags         %d (%.2f/s)%n", lat.length, lat.length / elapsed);
+    if (0 < lat.length) {
+      System.out.printf("tag latency  p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms%n",
+          percentile(lat, 0.50) / 1e6, percentile(lat, 0.90) / 1e6,
+          percentile(lat, 0.99) / 1e6, lat[lat.length - 1] / 1e6);
+      System.out.printf("calls/tag    %.1f%n", (double) calls / lat.length);
+    } else {
+      System.out.printf("calls/tag    - (%d calls, no tags)%n", calls);
+    }
+    System.out.printf("gossip       %d (%.1f/s)%n", gossip, gossip / elapsed);
+    System.out.printf("lost         %d%n", lostCount);
+    System.out.printf("dup          %d (max %d 'it' at once)%n", dupCount, maxIt);
+  }
+
+  /**
+   * Returns the nearest-rank percentile of a sorted array.
+   */
+  private static long percentile(long[] sorted, double p) {
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+  }
+
+  /* ================ m a i n ================ */
+
+  private static void showUsage() {
+    String[] msg = {
+        "Usage: {'?',-h,-help}|[-bailiffs n][-players n][-rs ms][-qs ms]"
+            + "[-pt ms][-time s][-seed n][-engine name][-fork][-grace ms][-nio][-stepped n][-rooms]",
+        "? -h help      This message",
+        "-bailiffs n    Sets the number of Bailiffs (3)",
+        "-players n     Sets the number of Players (10)",
+        "-rs  ms        Sets the restraint sleep of the Players (1000)",
+        "-qs  ms        Sets the lookup query retry delay of the Players (1000)",
+        "-pt  ms        Sets the load probe deadline of the Players (1000)",
+        "-time s        Sets the duration of the run in seconds (30)",
+        "-seed n        Sets the seed of the initial configuration (1)",
+        "-engine name   Sets the agent engine of the Bailiffs (legacy)",
+        "-fork          Runs the rmiregistry as a separate process",
+        "-grace ms      Sets how long a lost or duplicated tag is tolerated (1000)",
+        "-nio           Starts the NIO transport of the Bailiffs; the Players",
+        "               use it when run with -Dtag.transport=nio",
+        "-stepped n     Runs the Players on n scheduler threads per Bailiff",
+        "-rooms         Hosts the Bailiffs as rooms of one BailiffRuntime, so",
+        "               the Players migrate between them without copying"
+    };
+    for (String s : msg)
+      System.out.println(s);
+  }
+
+  public static void main(String[] argv) throws Exception {
+    TagSoak soak = new TagSoak();
+
+    int state = 0;
+
+    for (String av : argv) {
+
+      switch (state) {
+
+        case 0:
+          if (av.equals("?") || av.equals("-h") || av.equals("-help")) {
+            showUsage();
+            return;
+          } else if (av.equals("-bailiffs"))
+            state = 1;
+          else if (av.equals("-players"))
+            state = 2;
+          else if (av.equals("-rs"))
+            state = 3;
+          else if (av.equals("-qs"))
+            state = 4;
+          else if (av.equals("-pt"))
+            state = 5;
+          else if (av.equals("-time"))
+            state = 6;
+          else if (av.equals("-seed"))
+            state = 7;
+          else if (av.equals("-engine"))
+            state = 8;
+          else if (av.equals("-fork"))
+            soak.forkRegistry = true;
+          else if (av.equals("-nio"))
+            soak.nio = true;
+          else if (av.equals("-grace"))
+            state = 9;
+          else if (av.equals("-stepped"))
+            state = 10;
+          else if (av.equals("-rooms"))
+            soak.rooms = true;
+          else {
+            System.err.println("Unknown commandline argument: " + av);
+            return;
+          }
+          break;
+
+        case 1:
+          soak.bailiffCount = Math.max(1, Integer.parseInt(av));
+          state = 0;
+          break;
+
+        case 2:
+          soak.playerCount = Math.max(1, Integer.parseInt(av));
+          state = 0;
+          break;
+
+        case 3:
+          soak.restraintSleep = Long.parseLong(av);
+          state = 0;
+          break;
+
+        case 4:
+          soak.retrySleep = Long.parseLong(av);
+          state = 0;
+          break;
+
+        case 5:
+          soak.probeDeadline = Long.parseLong(av);
+          state = 0;
+          break;
+
+        case 6:
+          soak.seconds = Long.parseLong(av);
+          state = 0;
+          break;
+
+        case 7:
+          soak.seed = Long.parseLong(av);
+          state = 0;
+          break;
+
+        case 8:
+          soak.engineName = av;
+          state = 0;
+          break;
+
+        case 9:
+          soak.graceMs = Long.parseLong(av);
+          state = 0;
+          break;
+
+        case 10:
+          soak.stepThreads = Math.max(1, Integer.parseInt(av));
+          state = 0;
+          break;
+      } // switch
+    } // for
+
+    boolean ok = soak.run();
+
+    // The RMI runtime keeps the JVM alive
+    System.exit(ok ? 0 : 2);
+  } // main
+
+} // class TagSoak
@@ -0,0 +1,337 @@
+// TunedSocketFactory.java
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TunedSocketFactory makes the sockets that carry RMI calls to and
+ * from a Bailiff. Unlike the default factories it sets TCP_NODELAY,
+ * SO_KEEPALIVE and the socket buffer sizes, and gives client sockets a
+ * connect deadline and a read deadline. A call to a peer that hangs
+ * fails with a RemoteException after the read deadline, instead of
+ * blocking the caller forever.
+ *
+ * A Bailiff exported with this factory hands the factory to its
+ * clients inside its stub, so Players and Dexters use the same settings
+ * for their calls to the Bailiff without further configuration. The
+ * BailiffDirectory uses the factory returned by client() for its calls
+ * to the rmiregistry.
+ *
+ * The RMI runtime keeps idle connections open and reuses them for
+ * later calls to the same endpoint, provided the client socket
+ * factories are equal. Factories with the same settings are equal, so
+ * all stubs of a Bailiff share its connections. How long an idle
+ * connection is kept is set with -Dsun.rmi.transport.connectionTimeout
+ * (milliseconds, default 15000).
+ *
+ * Every socket counts the bytes it reads and writes. Client sockets
+ * also record how long connecting takes and how long reads wait for
+ * data, which for a call is mostly the time until the reply arrives.
+ * The counters are per JVM and returned by stats().
+ */
+public final class TunedSocketFactory
+    implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final TunedSocketFactory client = new TunedSocketFactory(
+      Integer.getInteger("tag.socket.connect", 5000),
+      Integer.getInteger("tag.socket.read", 10000),
+      true, true, 0);
+
+  /**
+   * Returns the factory used by this JVM for calls that do not come
+   * with a factory of their own, such as calls to the rmiregistry. Its
+   * deadlines are set with -Dtag.socket.connect and -Dtag.socket.read
+   * (milliseconds, defaults 5000 and 10000).
+   */
+  public static TunedSocketFactory client() {
+    return client;
+  }
+
+  private final int connectTimeoutMs;
+  private final int readTimeoutMs;
+  private final boolean tcpNoDelay;
+  private final boolean keepAlive;
+  private final int bufferSize;
+
+  /**
+   * Creates a factory.
+   *
+   * @param connectTimeoutMs How long a client waits for a connection to
+   *                         be established, 0 is forever.
+   * @param readTimeoutMs    How long a client waits for data, 0 is
+   *                         forever. This bounds every remote call.
+   * @param tcpNoDelay       True to disable Nagle's algorithm.
+   * @param keepAlive        True to enable TCP keep-alive probes.
+   * @param bufferSize       The send and receive buffer sizes in bytes,
+   *                         0 to use the system defaults.
+   */
+  public TunedSocketFactory(int connectTimeoutMs, int readTimeoutMs,
+      boolean tcpNoDelay, boolean keepAlive, int bufferSize) {
+    if (connectTimeoutMs < 0 || readTimeoutMs < 0 || bufferSize < 0)
+      throw new IllegalArgumentException("Negative socket setting");
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+    this.tcpNoDelay = tcpNoDelay;
+    this.keepAlive = keepAlive;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Creates a client socket connected to the given endpoint.
+   *
+   * @throws IOException Thrown if the connection fails or the connect
+   *                     deadline passes.
+   */
+  public Socket createSocket(String host, int port) throws IOException {
+    CountingSocket s = new CountingSocket(true);
+    configure(s);
+    s.setSoTimeout(readTimeoutMs);
+
+    long t0 = System.nanoTime();
+    try {
+      s.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+    } catch (SocketTimeoutException e) {
+      stats.timeouts.increment();
+      s.close();
+      throw e;
+    } catch (IOException e) {
+      s.close();
+      throw e;
+    }
+    stats.connectNanos.record(System.nanoTime() - t0);
+    stats.connects.increment();
+    return s;
+  }
+
+  /**
+   * Creates a server socket whose accepted sockets are configured and
+   * counted. Read deadlines on the server side are left to the RMI
+   * runtime.
+   */
+  public ServerSocket createServerSocket(int port) throws IOException {
+    return new ServerSocket(port) {
+      public Socket accept() throws IOException {
+        CountingSocket s = new CountingSocket(false);
+        implAccept(s);
+        configure(s);
+        stats.accepts.increment();
+        return s;
+      }
+    };
+  }
+
+  private void configure(Socket s) throws IOException {
+    s.setTcpNoDelay(tcpNoDelay);
+    s.setKeepAlive(keepAlive);
+    if (0 < bufferSize) {
+      s.setSendBufferSize(bufferSize);
+      s.setReceiveBufferSize(bufferSize);
+    }
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeoutMs;
+  }
+
+  public int getReadTimeout() {
+    return readTimeoutMs;
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof TunedSocketFactory))
+      return false;
+    TunedSocketFactory f = (TunedSocketFactory) o;
+    return connectTimeoutMs == f.connectTimeoutMs
+        && readTimeoutMs == f.readTimeoutMs
+        && tcpNoDelay == f.tcpNoDelay
+        && keepAlive == f.keepAlive
+        && bufferSize == f.bufferSize;
+  }
+
+  public int hashCode() {
+    int h = connectTimeoutMs;
+    h = 31 * h + readTimeoutMs;
+    h = 31 * h + (tcpNoDelay ? 1 : 0);
+    h = 31 * h + (keepAlive ? 1 : 0);
+    h = 31 * h + bufferSize;
+    return h;
+  }
+
+  public String toString() {
+    return String.format("TunedSocketFactory(connect=%dms read=%dms nodelay=%b"
+        + " keepalive=%b buffers=%d)", connectTimeoutMs, readTimeoutMs,
+        tcpNoDelay, keepAlive, bufferSize);
+  }
+
+  /* ================ S t a t s ================ */
+
+  private static final Stats stats = new Stats();
+
+  /**
+   * Returns the socket counters of this JVM.
+   */
+  public static Stats stats() {
+    return stats;
+  }
+
+  /**
+   * Socket counters, summed over all sockets made by any
+   * TunedSocketFactory in the JVM.
+   */
+  public static final class Stats {
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder connects = new LongAdder();
+    final LongAdder accepts = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final Histogram connectNanos = new Histogram();
+    final Histogram readWaitNanos = new Histogram();
+
+    public long getBytesRead() {
+      return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten.sum();
+    }
+
+    /**
+     * Returns the number of client connections established.
+     */
+    public long getConnects() {
+      return connects.sum();
+    }
+
+    /**
+     * Returns the number of server connections accepted.
+     */
+    public long getAccepts() {
+      return accepts.sum();
+    }
+
+    /**
+     * Returns the number of connect and read deadlines that passed.
+     */
+    public long getTimeouts() {
+      return timeouts.sum();
+    }
+
+    /**
+     * Returns the time taken to connect client sockets, nanoseconds.
+     */
+    public Histogram getConnectNanos() {
+      return connectNanos;
+    }
+
+    /**
+     * Returns the time client reads waited for data, nanoseconds.
+     */
+    public Histogram getReadWaitNanos() {
+      return readWaitNanos;
+    }
+  }
+
+  /* ================ C o u n t i n g S o c k e t ================ */
+
+  /**
+   * A socket whose streams count bytes, and on the client side time
+   * the reads.
+   */
+  private static final class CountingSocket extends Socket {
+    private final boolean client;
+    private InputStream in = null;
+    private OutputStream out = null;
+
+    CountingSocket(boolean client) {
+      this.client = client;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+      if (in == null)
+        in = new CountingInputStream(super.getInputStream(), client);
+      return in;
+    }
+
+    public synchronized OutputStream getOutputStream() throws IOException {
+      if (out == null)
+        out = new CountingOutputStream(super.getOutputStream());
+      return out;
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    private final boolean timed;
+
+    CountingInputStream(InputStream in, boolean timed) {
+      super(in);
+      this.timed = timed;
+    }
+
+    public int read() throws IOException {
+      long t0 = timed ? System.nanoTime() : 0;
+      int b = read0();
+      if (timed)
+        stats.readWaitNanos.record(System.nanoTime() - t0);
+      if (0 <= b)
+        stats.bytesRead.increment();
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      long t0 = timed ? System.nanoTime() : 0;
+      int n = read0(b, off, len);
+      if (timed)
+        stats.readWaitNanos.record(System.nanoTime() - t0);
+      if (0 < n)
+        stats.bytesRead.add(n);
+      return n;
+    }
+
+    private int read0() throws IOException {
+      try {
+        return super.read();
+      } catch (SocketTimeoutException e) {
+        stats.timeouts.increment();
+        throw e;
+      }
+    }
+
+    private int read0(byte[] b, int off, int len) throws IOException {
+      try {
+        return super.read(b, off, len);
+      } catch (SocketTimeoutException e) {
+        stats.timeouts.increment();
+        throw e;
+      }
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      stats.bytesWritten.increment();
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      stats.bytesWritten.add(len);
+    }
+  }
+}